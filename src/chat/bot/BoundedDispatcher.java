@@ -0,0 +1,97 @@
+package chat.bot;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Dispatcher} backed by a fixed-size pool with a bounded queue.<br>
+ * When the running JVM supports virtual threads they are used for the pool's
+ * workers, otherwise ordinary platform threads are used. Idle workers are
+ * released after {@link #keepAliveSeconds}.
+ */
+public class BoundedDispatcher implements Dispatcher
+{
+	private static final long keepAliveSeconds = 60;
+	private final ThreadPoolExecutor executor;
+	private final boolean virtual;
+	/**
+	 * @param name The prefix for the names of the worker threads
+	 * @param maxRunning The maximum number of tasks running at once
+	 * @param maxQueued The maximum number of tasks waiting to be run
+	 * @param preferVirtualThreads Whether to use virtual threads when available
+	 */
+	public BoundedDispatcher(String name, int maxRunning, int maxQueued, boolean preferVirtualThreads)
+	{
+		if(maxRunning<1 || maxQueued<1)
+			throw new IllegalArgumentException("Dispatcher \""+name+"\" needs at least one thread and one queue slot.");
+		ThreadFactory factory = preferVirtualThreads ? virtualThreadFactory(name) : null;
+		virtual = factory!=null;
+		if(factory==null)
+			factory = platformThreadFactory(name);
+		executor = new ThreadPoolExecutor(maxRunning, maxRunning,
+				keepAliveSeconds, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(maxQueued), factory);
+		executor.allowCoreThreadTimeOut(true);
+	}
+	public boolean dispatch(Runnable task)
+	{
+		try{
+			executor.execute(task);
+			return true;
+		}
+		catch(RejectedExecutionException e){
+			return false;
+		}
+	}
+	public int getRunningCount()
+	{
+		return executor.getActiveCount();
+	}
+	public int getQueuedCount()
+	{
+		return executor.getQueue().size();
+	}
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+	/**@return {@code true} iff this dispatcher runs its tasks on virtual threads.*/
+	public boolean isVirtual()
+	{
+		return virtual;
+	}
+	private static ThreadFactory platformThreadFactory(String name)
+	{
+		final AtomicInteger threadNumber = new AtomicInteger(1);
+		return (Runnable r)->{
+			return new Thread(r, name+"-"+threadNumber.getAndIncrement());
+		};
+	}
+	/**
+	 * Looks up <code>Thread.ofVirtual().name(name, 1).factory()</code> reflectively,
+	 * so this class still loads on JVMs without virtual threads.
+	 * @return the factory, or {@code null} if virtual threads are not available.
+	 */
+	private static ThreadFactory virtualThreadFactory(String name)
+	{
+		try{
+			Class<?> builderclass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderclass.getMethod("name", String.class, long.class).invoke(builder, name+"-", 1L);
+			return (ThreadFactory)builderclass.getMethod("factory").invoke(builder);
+		}
+		catch(ReflectiveOperationException | LinkageError | ClassCastException e){
+			return null;
+		}
+	}
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName()+"[running="+getRunningCount()+
+				",queued="+getQueuedCount()+",virtual="+virtual+"]";
+	}
+}
@@ -3,33 +3,70 @@ package chat.bot;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.script.ScriptException;
 import javax.security.sasl.AuthenticationException;
 import chat.ChatSite;
+import chat.bot.tools.MicroAssembler;
 import chat.events.ChatEvent;
 import chat.events.ChatEventList;
 import chat.events.EventHandler;
 import chat.events.EventHandlerImpl;
 import chat.io.ChatIO;
+import chat.io.CircuitBreaker;
 import chat.io.ErrorMessages;
 import chat.io.ErrorMessages.ErrorType;
 import chat.users.ChatUser;
+import utils.PhaseTimer;
 import utils.Utils;
 import utils.eval.EvalResult;
+import utils.js.ScriptSandbox;
 
 public class ChatBot
 {
-	private static final long chatRefreshDelay = 5000;
-	private static HashMap<ChatSite,ChatIO> chatio = new HashMap<>();
+	private static final long defaultMinPollDelay = 1000;
+	private static final long defaultMaxPollDelay = 10000;
+	private static final double pollBackoffFactor = 2;
+	private static final int defaultEventThreads = 16;
+	private static final int defaultEventQueue = 256;
+	private static final int defaultCommandThreads = 8;
+	private static final int defaultCommandQueue = 64;
+	private static final int defaultRoomQueue = 256;
+	private static final int roomQueueWarnDepth = 32;
+	private static Map<ChatSite,ChatIO> chatio = new ConcurrentHashMap<>();
 	private final EventHandler eventhandler;
-	private static Thread eventhandlerthread;
+	private static Map<ChatSite,Thread> pollerthreads = new ConcurrentHashMap<>();
+	private Dispatcher eventdispatcher;
+	private KeyedDispatcher<String> roomdispatcher;
+	private static Map<ChatSite,PollScheduler> pollschedulers = new ConcurrentHashMap<>();
+	private long minPollDelay = defaultMinPollDelay, maxPollDelay = defaultMaxPollDelay;
+	private boolean useWebSocket = false;
 	public ChatBot(String propfile) throws IOException{
 		this(Utils.loadProperties(propfile));
 	}
 	public ChatBot(Properties props) throws AuthenticationException{
 		eventhandler = new EventHandlerImpl();
+		boolean virtual = !"false".equalsIgnoreCase(props.getProperty("VIRTUAL_THREADS"));
+		eventdispatcher = new BoundedDispatcher("Event",
+				getIntProperty(props, "EVENT_THREADS", defaultEventThreads),
+				getIntProperty(props, "EVENT_QUEUE", defaultEventQueue),
+				virtual);
+		eventhandler.setCommandDispatcher(new BoundedDispatcher("Command",
+				getIntProperty(props, "COMMAND_THREADS", defaultCommandThreads),
+				getIntProperty(props, "COMMAND_QUEUE", defaultCommandQueue),
+				virtual));
+		minPollDelay = getIntProperty(props, "POLL_MIN_DELAY", (int)defaultMinPollDelay);
+		maxPollDelay = getIntProperty(props, "POLL_MAX_DELAY", (int)defaultMaxPollDelay);
+		useWebSocket = "true".equalsIgnoreCase(props.getProperty("WEBSOCKET"));
+		MicroAssembler.setJitThreshold(getIntProperty(props, "ASM_JIT_THRESHOLD", MicroAssembler.getJitThreshold()));
 		HashMap<String, Long[]> relation = new HashMap<>(3);
 		for(ChatSite chatsite : ChatSite.values())
 		{
@@ -66,17 +103,61 @@ public class ChatBot
 		eventhandler = new EventHandlerImpl();
 		init(login, password, initialsiterooms);
 	}
+	private static int getIntProperty(Properties props, String key, int defaultvalue)
+	{
+		String value = props.getProperty(key);
+		if(value==null)
+			return defaultvalue;
+		try{
+			return Integer.parseInt(value.trim());
+		}
+		catch(NumberFormatException e){
+			System.err.println("Invalid value \""+value+"\" for "+key+", using "+defaultvalue);
+			return defaultvalue;
+		}
+	}
 	private void init(final String login, final String password, 
 			Map<String,Long[]> initialsiterooms) throws AuthenticationException
 	{
+		if(eventdispatcher==null)
+			eventdispatcher = new BoundedDispatcher("Event", defaultEventThreads, defaultEventQueue, true);
+		roomdispatcher = new KeyedDispatcher<>(eventdispatcher, defaultRoomQueue, roomQueueWarnDepth);
+		PhaseTimer startup = new PhaseTimer();
 		System.out.println("Logging in...");
+		//All sites log in at the same time; the Stack Exchange sites share the login in progress
+		Map<ChatSite, CompletableFuture<ChatIO>> logins = new LinkedHashMap<>();
+		ExecutorService loginthreads = Executors.newCachedThreadPool();
 		for(Entry<String, Long[]> relation : initialsiterooms.entrySet())
 		{
 			String site=relation.getKey().toUpperCase();
 			ChatSite chatsite = ChatSite.valueOf(site.toUpperCase());
 			if(!chatio.containsKey(chatsite))
-				chatio.put(chatsite, new ChatIO(chatsite, login, password, relation.getValue()));
+				logins.put(chatsite, CompletableFuture.supplyAsync(()->{
+					try{
+						return new ChatIO(chatsite, login, password, relation.getValue());
+					}
+					catch(AuthenticationException e){
+						throw new CompletionException(e);
+					}
+				}, loginthreads));
 		}
+		AuthenticationException loginfailure = null;
+		for(Entry<ChatSite, CompletableFuture<ChatIO>> pending : logins.entrySet())
+		{
+			try{
+				chatio.put(pending.getKey(), pending.getValue().join());
+			}
+			catch(CompletionException e){
+				if(loginfailure==null)
+					loginfailure = e.getCause() instanceof AuthenticationException
+							? (AuthenticationException)e.getCause()
+							: new AuthenticationException("Failed to log in to "+pending.getKey(), e.getCause());
+			}
+		}
+		loginthreads.shutdown();
+		if(loginfailure!=null)
+			throw loginfailure;
+		startup.mark("login");
 		for(ChatSite site : ChatSite.values())
 		{
 			Long[] rooms;
@@ -93,27 +174,102 @@ public class ChatBot
 			System.out.println("Rejoining "+site+" rooms "+java.util.Arrays.toString(rooms));
 			chatio.get(site).joinRoom(rooms);
 		}
-		eventhandlerthread = new Thread(new Runnable()
+		startup.mark("rejoin");
+		for(ChatIO io : chatio.values())
+		{
+			if(useWebSocket)
+			{
+				try
+				{
+					io.openEventSocket((eventlist)->{
+						dispatch(eventlist, io.getMyUserId());
+					});
+					continue;
+				}
+				catch(IOException e)
+				{
+					System.err.println("Failed to open WebSocket for "+io.getChatSite()+", polling instead");
+					e.printStackTrace();
+				}
+			}
+			startPolling(io);
+		}
+		startup.mark("events");
+		System.out.println("Started in "+startup);
+	}
+	/**
+	 * Starts a thread that polls the given site on its own schedule.<br>
+	 * All sites hand their events to the same event dispatcher, so a slow or
+	 * failing site does not delay the others.
+	 */
+	private void startPolling(final ChatIO io)
+	{
+		final ChatSite site = io.getChatSite();
+		final PollScheduler scheduler = new PollScheduler(minPollDelay, maxPollDelay, pollBackoffFactor);
+		pollschedulers.put(site, scheduler);
+		Thread poller = new Thread(new Runnable()
 		{
 			public void run()
 			{
 				while(true){
-					ChatEventList eventlist = ChatBot.getAllChatEvents();
-					for(ChatEvent event : eventlist)
-						if(event.getUserId()!=ChatBot.chatio.get(event.getChatSite()).getMyUserId())
-							new Thread(()->{
-								eventhandler.handle(event);
-							}).start();
-					System.gc();
+					ChatEventList eventlist = io.getChatEvents();
+					dispatch(eventlist, io.getMyUserId());
+					CircuitBreaker breaker = io.getCircuitBreaker();
+					long delay;
+					if(breaker.getState()==CircuitBreaker.State.CLOSED)
+						delay = scheduler.onPoll(eventlist.size());
+					else{
+						//Wait for the breaker instead of polling a failing site
+						scheduler.onFailure();
+						delay = Math.max(scheduler.getMinDelay(), breaker.getRetryDelay());
+					}
 					try{
-						Thread.sleep(chatRefreshDelay);
+						Thread.sleep(delay);
 					}catch(InterruptedException ie){
 						ie.printStackTrace();
 					}
 				}
 			}
-		});
-		eventhandlerthread.start();
+		}, "Poller-"+site.getAbbreviation());
+		pollerthreads.put(site, poller);
+		poller.start();
+	}
+	/**
+	 * Hands events to the event handler. Events of the same room are handled
+	 * in order; events of different rooms are handled in parallel. While a
+	 * room's queue is full the poller waits for it, so polling slows down
+	 * instead of dropping events.
+	 */
+	private void dispatch(ChatEventList eventlist, long myuserid)
+	{
+		for(ChatEvent event : eventlist)
+			if(event.getUserId()!=myuserid){
+				try{
+					roomdispatcher.put(getRoomKey(event), ()->{
+						eventhandler.handle(event);
+					});
+				}
+				catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					System.out.println("Interrupted while queueing event "+event.getId()+" for "+getRoomKey(event));
+					return;
+				}
+			}
+	}
+	private static String getRoomKey(ChatEvent event)
+	{
+		return event.getChatSite().getAbbreviation()+" room "+event.getRoomId();
+	}
+	public Dispatcher getEventDispatcher()
+	{
+		return eventdispatcher;
+	}
+	/**
+	 * The number of events waiting or being handled, per room that has any.
+	 */
+	public Map<String, Integer> getRoomQueueDepths()
+	{
+		return roomdispatcher.getQueueDepths();
 	}
 	public void setTrigger(final String trigger)
 	{
@@ -129,9 +285,14 @@ public class ChatBot
 		if(chatio.containsKey(site))
 			chatio.get(site).leaveRoom(rooms);
 	}
-	public static void putMessage(ChatSite site, final long roomid, final String message)
+	/**
+	 * Queues a message to a room.
+	 * @return A future that completes with the id of the posted message once it is sent.
+	 * @throws IllegalStateException if the bot is not in the room.
+	 */
+	public static CompletableFuture<Long> putMessage(ChatSite site, final long roomid, final String message)
 	{
-		if(message.trim().isEmpty()) return;
+		if(message.trim().isEmpty()) return CompletableFuture.completedFuture(-1L);
 		System.out.println("Sending message to "+site+" room "+roomid+
 				" with content \""+message.replace("\n", "\\n")+"\".");
 		if(!chatio.containsKey(site))
@@ -140,22 +301,27 @@ public class ChatBot
 		if(!io.isInRoom(roomid))
 			throw new IllegalStateException("Not in room "+roomid+
 					" on site \""+site+"\".");
-		io.putMessage(roomid, message);
+		return io.queueMessage(roomid, message);
 	}
-	public static void putMessage(final ChatEvent event, final String message){
-		if(message.trim().isEmpty()){
-			putMessage(event, ErrorMessages.getErrorText(event, ErrorType.GENERIC));
-			return;
-		}
-		putMessage(event.getChatSite(), event.getRoomId(), message);
+	public static CompletableFuture<Long> putMessage(final ChatEvent event, final String message){
+		if(message.trim().isEmpty())
+			return putMessage(event, ErrorMessages.getErrorText(event, ErrorType.GENERIC));
+		return putMessage(event.getChatSite(), event.getRoomId(), message);
 	}
-	public static void replyToMessage(ChatEvent event, String message){
-		putMessage(event, ":"+event.getMessageId()+" "+message);
+	public static CompletableFuture<Long> replyToMessage(ChatEvent event, String message){
+		return putMessage(event, ":"+event.getMessageId()+" "+message);
 	}
-	public static void replyToMessageByEval(ChatEvent event, String args){
-		EvalResult result = Utils.eval(args);
-		//TODO use the rest of result somewhere
-		String message = result.getResultDefault();
+	public static CompletableFuture<Long> replyToMessageByEval(ChatEvent event, String args){
+		String message;
+		try{
+			EvalResult result = ScriptSandbox.run(()->Utils.eval(args), ScriptSandbox.Limits.DEFAULT);
+			//TODO use the rest of result somewhere
+			message = result.getResultDefault();
+		}
+		catch(ScriptException e){
+			System.out.println("Evaluation of \""+args+"\" failed: "+e.getMessage());
+			message = "";
+		}
 		if(message.isEmpty() || message.matches("\\s*")){
 			double rngval = Math.random();
 			if(rngval>.98)
@@ -165,11 +331,25 @@ public class ChatBot
 			else
 				message = "?!";
 		}
-		putMessage(event, ":"+event.getMessageId()+" "+message);
+		return putMessage(event, ":"+event.getMessageId()+" "+message);
 	}
-	public static void acknowledge(ChatEvent event){
+	/**
+	 * Edits a message the bot posted.
+	 * @return A future that completes once the message is edited.
+	 */
+	public static CompletableFuture<Void> editMessage(ChatSite site, long messageid, String message){
+		return chatio.get(site).editMessageAsync(messageid, message);
+	}
+	/**
+	 * Acknowledges a mention or reply. The acknowledgement is sent in the
+	 * background together with others, so this does not wait for the network.
+	 */
+	public static CompletableFuture<Void> acknowledge(ChatEvent event){
 		ChatIO io = chatio.get(event.getChatSite());
-		io.acknowledge(event.getMessageId());
+		return io.queueAcknowledge(event.getMessageId()).whenComplete((result, e)->{
+			if(e!=null)
+				e.printStackTrace();
+		});
 	}
 	/**
 	 * Gets the events to be handled from all chat sites.
@@ -179,8 +359,8 @@ public class ChatBot
 	{
 		//System.out.println("Getting chat events from all sites");
 		ChatEventList eventlist = new ChatEventList();
-		for(ChatIO chatiosites : chatio.values())
-			eventlist.addAll(chatiosites.getChatEvents());
+		chatio.values().parallelStream().map(ChatIO::getChatEvents)
+			.forEachOrdered(eventlist::addAll);
 		//if(eventlist.isEmpty())
 		//	System.out.println("No new events.");
 		return eventlist;
@@ -188,8 +368,28 @@ public class ChatBot
 	public static ChatIO getChatIO(ChatSite site){
 		return chatio.get(site);
 	}
+	/**
+	 * The current delay between two polls of the given site, in milliseconds,
+	 * or 0 if the site is not polled because it uses a WebSocket.
+	 * @see PollScheduler
+	 */
+	public static long getDelay(ChatSite site){
+		PollScheduler scheduler = pollschedulers.get(site);
+		return scheduler==null ? 0 : scheduler.getDelay();
+	}
+	/**
+	 * The shortest current delay between two polls of any site, in
+	 * milliseconds, or 0 if no site is polled.
+	 * @see #getDelay(ChatSite)
+	 */
 	public static long getDelay(){
-		return chatRefreshDelay;
+		long delay = Long.MAX_VALUE;
+		for(PollScheduler scheduler : pollschedulers.values())
+			delay = Math.min(delay, scheduler.getDelay());
+		return delay==Long.MAX_VALUE ? 0 : delay;
+	}
+	public static PollScheduler getPollScheduler(ChatSite site){
+		return pollschedulers.get(site);
 	}
 	public static String getMyUserName(){
 		String username = "ERROR";
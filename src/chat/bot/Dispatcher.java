@@ -0,0 +1,22 @@
+package chat.bot;
+
+/**
+ * Runs tasks asynchronously, with a ceiling on the number of tasks running at
+ * once and on the number of tasks waiting to run.
+ */
+public interface Dispatcher
+{
+	/**
+	 * Schedules a task to be run.
+	 * @param task The task to run
+	 * @return {@code true} if the task was accepted, {@code false} if the queue
+	 * is full or the dispatcher has been shut down.
+	 */
+	public abstract boolean dispatch(Runnable task);
+	/**The number of tasks that are currently running.*/
+	public abstract int getRunningCount();
+	/**The number of tasks that are waiting to be run.*/
+	public abstract int getQueuedCount();
+	/**Stops accepting tasks; tasks already accepted are still run.*/
+	public abstract void shutdown();
+}
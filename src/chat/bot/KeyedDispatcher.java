@@ -0,0 +1,152 @@
+package chat.bot;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks in the order they were submitted for the same key, while tasks
+ * for different keys run in parallel on an underlying {@link Dispatcher}.<br>
+ * Each key has its own queue; at most one task per key runs at a time. A key
+ * gives up its thread after {@link #batchSize} tasks so that a busy key does
+ * not starve the others.
+ */
+public class KeyedDispatcher<K>
+{
+	private static final int batchSize = 16;
+	private final Dispatcher dispatcher;
+	private final int maxQueuedPerKey;
+	private final int warnDepth;
+	private final Map<K, Lane> lanes = new ConcurrentHashMap<>();
+
+	/**The queue of a single key.*/
+	private final class Lane
+	{
+		private final K key;
+		private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger depth = new AtomicInteger();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		/**The number of threads waiting in {@link KeyedDispatcher#put} for room in the queue.*/
+		private final AtomicInteger waiting = new AtomicInteger();
+		private volatile boolean warned = false;
+		Lane(K key)
+		{
+			this.key=key;
+		}
+	}
+	/**
+	 * @param dispatcher The dispatcher that runs the tasks
+	 * @param maxQueuedPerKey The maximum number of waiting tasks per key
+	 * @param warnDepth The queue depth of a key at which a warning is printed
+	 */
+	public KeyedDispatcher(Dispatcher dispatcher, int maxQueuedPerKey, int warnDepth)
+	{
+		this.dispatcher=dispatcher;
+		this.maxQueuedPerKey=maxQueuedPerKey;
+		this.warnDepth=warnDepth;
+	}
+	/**
+	 * Schedules a task to run after all tasks previously submitted for the same key.
+	 * @return {@code true} if the task was accepted, {@code false} if the key's queue is full.
+	 */
+	public boolean dispatch(K key, Runnable task)
+	{
+		Lane lane = lanes.computeIfAbsent(key, Lane::new);
+		int depth = lane.depth.incrementAndGet();
+		if(depth>maxQueuedPerKey){
+			lane.depth.decrementAndGet();
+			return false;
+		}
+		if(depth>=warnDepth && !lane.warned){
+			lane.warned = true;
+			System.out.println("Queue for "+key+" has reached "+depth+" tasks");
+		}
+		lane.queue.add(task);
+		schedule(lane);
+		return true;
+	}
+	/**
+	 * Schedules a task like {@link #dispatch}, but waits while the key's queue
+	 * is full instead of refusing the task, so a producer that is faster than
+	 * the tasks is slowed down to their pace.
+	 * @throws InterruptedException if interrupted while waiting; the task is not scheduled.
+	 */
+	public void put(K key, Runnable task) throws InterruptedException
+	{
+		while(!dispatch(key, task)){
+			Lane lane = lanes.get(key);
+			synchronized(lane){
+				lane.waiting.incrementAndGet();
+				try{
+					while(lane.depth.get()>=maxQueuedPerKey)
+						lane.wait();
+				}
+				finally{
+					lane.waiting.decrementAndGet();
+				}
+			}
+		}
+	}
+	private void schedule(Lane lane)
+	{
+		if(lane.scheduled.compareAndSet(false, true) && !dispatcher.dispatch(()->drain(lane)))
+			//The dispatcher is saturated, so run them here
+			drain(lane);
+	}
+	private void drain(Lane lane)
+	{
+		while(true){
+			Runnable task;
+			for(int n=0; n<batchSize && (task=lane.queue.poll())!=null; ++n){
+				try{
+					task.run();
+				}
+				catch(RuntimeException e){
+					System.err.println("Task for "+lane.key+" failed");
+					e.printStackTrace();
+				}
+				finally{
+					if(lane.depth.decrementAndGet()<warnDepth/2)
+						lane.warned = false;
+					if(lane.waiting.get()>0)
+						synchronized(lane){
+							lane.notifyAll();
+						}
+				}
+			}
+			lane.scheduled.set(false);
+			if(lane.queue.isEmpty() || !lane.scheduled.compareAndSet(false, true))
+				return;
+			if(dispatcher.dispatch(()->drain(lane)))
+				return;
+		}
+	}
+	/**
+	 * The number of tasks waiting or running for the given key.
+	 */
+	public int getQueueDepth(K key)
+	{
+		Lane lane = lanes.get(key);
+		return lane==null ? 0 : lane.depth.get();
+	}
+	/**
+	 * The number of tasks waiting or running for every key that has any.
+	 */
+	public Map<String, Integer> getQueueDepths()
+	{
+		Map<String, Integer> depths = new TreeMap<>();
+		for(Lane lane : lanes.values()){
+			int depth = lane.depth.get();
+			if(depth>0)
+				depths.put(String.valueOf(lane.key), depth);
+		}
+		return depths;
+	}
+	public Dispatcher getDispatcher()
+	{
+		return dispatcher;
+	}
+}
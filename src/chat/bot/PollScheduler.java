@@ -0,0 +1,137 @@
+package chat.bot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import utils.Utils;
+
+/**
+ * Decides how long to wait between two polls.<br>
+ * The delay drops to the minimum as soon as a poll returns events and is
+ * multiplied by the backoff factor after every poll that returns nothing,
+ * up to the maximum.
+ */
+public class PollScheduler
+{
+	/**Why the delay was changed.*/
+	public static enum Reason{
+		/**The scheduler was created.*/
+		INITIAL,
+		/**The last poll returned events.*/
+		ACTIVITY,
+		/**The last poll returned no events.*/
+		IDLE,
+		/**The last poll failed.*/
+		FAILURE,
+	}
+	/**A change of the delay.*/
+	public static final class Change
+	{
+		private final long time, from, to;
+		private final Reason reason;
+		private Change(long time, long from, long to, Reason reason)
+		{
+			this.time=time;
+			this.from=from;
+			this.to=to;
+			this.reason=reason;
+		}
+		/**The time of the change, in milliseconds since the epoch.*/
+		public long getTime(){
+			return time;
+		}
+		public long getFrom(){
+			return from;
+		}
+		public long getTo(){
+			return to;
+		}
+		public Reason getReason(){
+			return reason;
+		}
+		@Override
+		public String toString(){
+			return from+"ms -> "+to+"ms ("+reason+")";
+		}
+	}
+	/**The number of changes kept by {@link #getHistory()}.*/
+	private static final int historySize = 32;
+	private final long minDelay, maxDelay;
+	private final double backoffFactor;
+	private long delay;
+	private Reason reason = Reason.INITIAL;
+	private final ArrayDeque<Change> history = new ArrayDeque<>(historySize);
+	/**
+	 * @param minDelay The delay after a poll that returned events, in milliseconds
+	 * @param maxDelay The longest delay, in milliseconds
+	 * @param backoffFactor The factor the delay grows by after a poll without events
+	 */
+	public PollScheduler(long minDelay, long maxDelay, double backoffFactor)
+	{
+		if(minDelay<1 || maxDelay<minDelay || backoffFactor<1)
+			throw new IllegalArgumentException("Invalid poll delays "+minDelay+"-"+
+					maxDelay+"ms with backoff factor "+backoffFactor);
+		this.minDelay=minDelay;
+		this.maxDelay=maxDelay;
+		this.backoffFactor=backoffFactor;
+		this.delay=minDelay;
+	}
+	/**
+	 * Records the result of a poll.
+	 * @param eventcount The number of events the poll returned
+	 * @return The delay before the next poll, in milliseconds
+	 */
+	public synchronized long onPoll(int eventcount)
+	{
+		if(eventcount>0)
+			return setDelay(minDelay, Reason.ACTIVITY);
+		return setDelay(Math.min(maxDelay, (long)Math.ceil(delay*backoffFactor)), Reason.IDLE);
+	}
+	/**
+	 * Records a failed poll; the delay backs off as if the poll returned nothing.
+	 * @return The delay before the next poll, in milliseconds
+	 */
+	public synchronized long onFailure()
+	{
+		return setDelay(Math.min(maxDelay, (long)Math.ceil(delay*backoffFactor)), Reason.FAILURE);
+	}
+	private long setDelay(long newdelay, Reason why)
+	{
+		if(newdelay!=delay){
+			if(history.size()>=historySize)
+				history.removeFirst();
+			history.addLast(new Change(Utils.getUnixTimeMillis(), delay, newdelay, why));
+			delay=newdelay;
+			reason=why;
+		}
+		return delay;
+	}
+	/**The current delay between polls, in milliseconds.*/
+	public synchronized long getDelay()
+	{
+		return delay;
+	}
+	/**The reason of the last change of the delay.*/
+	public synchronized Reason getReason()
+	{
+		return reason;
+	}
+	/**The most recent changes of the delay, oldest first.*/
+	public synchronized List<Change> getHistory()
+	{
+		return new ArrayList<>(history);
+	}
+	public long getMinDelay()
+	{
+		return minDelay;
+	}
+	public long getMaxDelay()
+	{
+		return maxDelay;
+	}
+	@Override
+	public synchronized String toString()
+	{
+		return getClass().getSimpleName()+"[delay="+delay+"ms,reason="+reason+"]";
+	}
+}
@@ -1,10 +1,15 @@
 package chat.bot.tools;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.regex.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import utils.Deadline;
 /*
  * Note: this class is experimental.
  */
@@ -15,15 +20,6 @@ import java.util.regex.*;
  */
 public final class MicroAssembler{
 	private MicroAssembler(){}
-	/**The registers.*/
-	private volatile int[] registers = new int[26];
-	
-	/**The index of the instruction to be executed next*/
-	private int proginstr;
-	/**The user-defined labels and the value of their associated line.*/
-	private Map<String, Integer> labels = new HashMap<>();
-	private ComparisonMask compval=ComparisonMask.NOP;
-	private final Random rand = new Random();
 	
 	/**Greater than; comparison mask*/
 	private static final byte G=0b100;
@@ -191,186 +187,6 @@ public final class MicroAssembler{
 	private static final String inputseperator = delimiter+".";
 	/**The regex for matching registers.*/
 	private static final String rRegx="[A-Za-z]";
-	/**The regex for printing the value of a register.*/
-	private static final String regx = "\\"+rvalch+"("+rRegx+")";
-	/**The regex to check if a string contains {@link #regx}.*/
-	private static final String contregx = "^.*"+regx+".*$";
-	/**The Pattern to check if a string contains {@link #regx}.*/
-	private static final Pattern rpat= Pattern.compile(regx);
-	/**The output text.*/
-	private String output;
-	/**The various instructions*/
-	private abstract class Instruction{
-		/**The instruction's mnemonic*/
-		private final char mne;
-		/**The instruction's input type*/
-		private final int kind;
-		private Instruction(char mnemonic, int kind){
-			this.mne=mnemonic;
-			this.kind=kind;
-		}
-		/**The action this instruction performs*/
-		abstract void action(Object[] args);
-		/**Input types*/
-		class ParType{
-			static final int
-			Alfa=1,
-			AlfaAlfanum=2,
-			NumWord=3,
-			Text=4
-			;
-		}
-		/**Parses the argument(s)*/
-		private Object[] parseargs(String args)
-		{
-			switch(kind){
-				case ParType.Alfa:
-					if(args.matches(rRegx))
-						return new Object[]{args.charAt(0)};
-					break;
-				case ParType.AlfaAlfanum:
-					if(args.matches(rRegx+rRegx))
-						return new Object[]{args.charAt(0), MicroAssembler.this.registers[correct(args.charAt(1))]};
-					if(args.matches(rRegx+"\\-?\\d+"))
-						return new Object[]{args.charAt(0), Integer.parseInt(args.substring(1))};
-					break;
-				case ParType.NumWord:
-					if(args.matches("\\d\\w+") || (args.charAt(0)=='0'))
-						return new Object[]{Integer.parseInt(""+args.charAt(0)), args.substring(1)};
-					break;
-				case ParType.Text:
-					return new Object[]{args};
-				default:
-					throw new InternalError("Invalid kind "+kind);
-			}
-			throw new IllegalArgumentException("The argument \""+args+"\" is invalid for the \'"+this.getMne()+"\' instruction ");
-		}
-		/**Performs the action with the arguments*/
-		public void performAction(String args){
-			Object[] pargs=parseargs(args);
-			this.action(pargs);
-		}
-		/**Returns this instruction's mnemonic*/
-		public char getMne(){
-			return this.mne;
-		}
-	}
-	Instruction[] instructions = new Instruction[]{
-			//Note: OUT has to be first to print all the other ops
-			/**The output instruction*/
-			new Instruction(op_out,Instruction.ParType.Text){
-				void action(Object[] args){
-					String txt = (String)args[0];
-					if(txt.matches(contregx)){
-						Matcher m = rpat.matcher(txt);
-						while(txt.matches(contregx)){
-							m.find();
-							char ch = m.group(1).charAt(0);
-							txt = txt.replace(rvalch+""+ch, ""+MicroAssembler.this.registers[correct(ch)]);
-						}
-					}
-					output+=txt;
-				}
-			},
-			/**The set data to a random value from 0 (inclusive) to arg2 (exclusive) instruction*/
-			new Instruction(op_rnd,Instruction.ParType.AlfaAlfanum){
-				void action(Object[] args){
-					registers[correct((Character)args[0])] = rand.nextInt((Integer)args[1]);
-				}
-			},
-			/**The move data instruction*/
-			new Instruction(op_mov,Instruction.ParType.AlfaAlfanum){
-				void action(Object[] args){
-					registers[correct((Character)args[0])] = (Integer)args[1];
-				}
-			},
-			/**The addition instruction*/
-			new Instruction(op_add,Instruction.ParType.AlfaAlfanum){
-				void action(Object[] args){
-					registers[correct((Character)args[0])] += (Integer)args[1];
-				}
-			},
-			/**The subtraction instruction*/
-			new Instruction(op_sub,Instruction.ParType.AlfaAlfanum){
-				void action(Object[] args){
-					registers[correct((Character)args[0])] -= (Integer)args[1];
-				}
-			},
-			/**The multiplication instruction*/
-			new Instruction(op_mul,Instruction.ParType.AlfaAlfanum){
-				void action(Object[] args){
-					registers[correct((Character)args[0])] *= (Integer)args[1];
-				}
-			},
-			/**The division instruction*/
-			new Instruction(op_div,Instruction.ParType.AlfaAlfanum){
-				void action(Object[] args){
-					registers[correct((Character)args[0])] /= (Integer)args[1];
-				}
-			},
-			/**The compare instruction*/
-			new Instruction(op_cmp,Instruction.ParType.AlfaAlfanum){
-				void action(Object[] args){
-					int val1 = registers[correct((Character)args[0])];
-					int val2 = (Integer)args[1];
-					if(val1>val2)
-						compval=ComparisonMask.GTR;
-					else if(val1<val2)
-						compval=ComparisonMask.LSS;
-					else if(val1==val2)
-						compval=ComparisonMask.EQU;
-					else
-						compval=ComparisonMask.NOP;
-				}
-			},
-			/**The bitwise AND instruction*/
-			new Instruction(op_and,Instruction.ParType.AlfaAlfanum){
-				void action(Object[] args){
-					registers[correct((Character)args[0])] &= (Integer)args[1];
-				}
-			},
-			/**The bitwise OR instruction*/
-			new Instruction(op_orr,Instruction.ParType.AlfaAlfanum){
-				void action(Object[] args){
-					registers[correct((Character)args[0])] |= (Integer)args[1];
-				}
-			},
-			/**The bitwise NOT instruction*/
-			new Instruction(op_not,Instruction.ParType.Alfa){
-				void action(Object[] args){
-					int r = correct((Character)args[0]);
-					registers[r] = ~registers[r];
-				}
-			},
-			/**The bit-shift left without carry instruction*/
-			new Instruction(op_lft,Instruction.ParType.AlfaAlfanum){
-				void action(Object[] args){
-					registers[correct((Character)args[0])] <<= (Integer)args[1];
-				}
-			},
-			/**The bit-shift right without carry instruction*/
-			new Instruction(op_rgt,Instruction.ParType.AlfaAlfanum){
-				void action(Object[] args){
-					registers[correct((Character)args[0])] >>>= (Integer)args[1];
-				}
-			},
-			/**The jump to label instruction*/
-			new Instruction(op_jmp,Instruction.ParType.NumWord){
-				void action(Object[] args){
-					int condition = (Integer)args[0];
-					if(condition==0)
-						return;
-					String target = ((String)args[1]).toLowerCase();
-					try{
-						int targetline = labels.get(target);
-						if((compval.getMask()&condition)>0)
-							proginstr = targetline;
-					}catch(NullPointerException npe){
-						throw new IllegalArgumentException("No line found with label \""+target+"\"");
-					}
-				}
-			}
-	};
 	/**Return the index of the register referred to by the given character*/
 	private static int correct(char ch){
 		if('A'<=ch && ch<='Z')
@@ -380,6 +196,18 @@ public final class MicroAssembler{
 		throw new IllegalArgumentException("'"+ch+"' is not a valid register.");
 	}
 	public static String assemble(String input){
+		return assemble(input, true);
+	}
+	/**Runs code that is only run once, such as code typed in chat, and returns it's output.<br/>
+	 * Unlike {@link #assemble(String)} the program is not kept in the cache, so
+	 * one-off programs do not push out the programs of commands.
+	 * @param input The code to assemble and execute, optionally followed by its arguments.
+	 * @return The output of the assembled code.
+	 */
+	public static String assembleOnce(String input){
+		return assemble(input, false);
+	}
+	private static String assemble(String input, boolean cache){
 		
 		int argstart = input.indexOf(inputseperator);
 		String arguments = "";
@@ -387,7 +215,7 @@ public final class MicroAssembler{
 			arguments = input.substring(argstart+inputseperator.length());
 			input=input.substring(0,argstart);
 		}
-		return new MicroAssembler().assemble0(input, arguments);
+		return run(decode(input, arguments, cache), Budget.DEFAULT);
 	}
 	/**Runs the code specified in <code>input</code> and returns it's output.<br/>
 	 * Format: [label]opcode(parameters)
@@ -395,57 +223,637 @@ public final class MicroAssembler{
 	 * @return The output of the assembled code.
 	 */
 	public static String assemble(String input, String arguments){
-		return new MicroAssembler().assemble0(input, arguments);
+		return assemble(input, arguments, Budget.DEFAULT);
 	}
-	/**Runs the code specified in <code>input</code> and returns it's output.<br/>
-	 * Format: [label]opcode(parameters)
+	/**Runs the code specified in <code>input</code> within a budget and returns it's output.<br/>
+	 * A program that exceeds the budget is stopped, and what it printed so far
+	 * is returned with a marker saying why it stopped.
 	 * @param input The code to assemble and execute.
 	 * @return The output of the assembled code.
 	 */
-	private String assemble0(String input, String arguments){
+	public static String assemble(String input, String arguments, Budget budget){
+		return run(decode(input, arguments), budget);
+	}
+	/**
+	 * Limits on what one run of a program may use.<br>
+	 * The run also stops when the {@link Deadline} of the current thread
+	 * expires, such as that of the command that started it.
+	 */
+	public static final class Budget{
+		/**The budget of programs run without one*/
+		public static final Budget DEFAULT = new Budget(1000000, 10000, 1000);
+		/**As much as the interpreter can count*/
+		public static final Budget UNLIMITED = new Budget(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+		private final int maxInstructions;
+		private final int maxOutput;
+		private final long maxMillis;
+		
+		/**
+		 * @param maxInstructions The number of lines the program may execute
+		 * @param maxOutput The number of characters the program may output
+		 * @param maxMillis The time the program may run, in milliseconds
+		 */
+		public Budget(int maxInstructions, int maxOutput, long maxMillis){
+			if(maxInstructions<0 || maxOutput<0 || maxMillis<0)
+				throw new IllegalArgumentException("Invalid budget");
+			this.maxInstructions=maxInstructions;
+			this.maxOutput=maxOutput;
+			this.maxMillis=maxMillis;
+		}
+		public int getMaxInstructions(){return maxInstructions;}
+		public int getMaxOutput(){return maxOutput;}
+		public long getMaxMillis(){return maxMillis;}
+	}
+	/**
+	 * Keeps track of the budget during one run.<br>
+	 * Instructions are handed out in small amounts of fuel, so the dispatch
+	 * loop only decrements a counter and the clock is read once per amount.
+	 */
+	static final class Meter{
+		/**Why a run ended*/
+		static final int
+		FINISHED=0,
+		INSTRUCTIONS=1,
+		OUTPUT=2,
+		TIME=3
+		;
+		/**The number of instructions between looks at the clock*/
+		private static final int fuelPerCheck = 1024;
+		private final int maxOutput;
+		private final long endNanos;
+		private final boolean timed;
+		private final Deadline deadline = Deadline.current();
+		private int instructions;
+		
+		Meter(Budget budget){
+			long millis = Math.min(budget.maxMillis, deadline.getRemaining());
+			this.timed=millis<Long.MAX_VALUE/2000000;
+			this.endNanos=timed ? System.nanoTime()+millis*1000000 : 0;
+			this.maxOutput=budget.maxOutput;
+			this.instructions=budget.maxInstructions;
+		}
+		/**
+		 * Called when a run used up it's fuel.
+		 * @return The fuel for the next instructions, or minus the reason to stop.
+		 */
+		int refuel(){
+			if((timed && System.nanoTime()-endNanos>=0) || deadline.isExpired())
+				return -TIME;
+			if(instructions<=0)
+				return -INSTRUCTIONS;
+			int fuel = Math.min(instructions, fuelPerCheck);
+			instructions -= fuel;
+			return fuel;
+		}
+		/**Whether the output is longer than allowed*/
+		boolean overflows(StringBuilder output){
+			return output.length()>maxOutput;
+		}
+		/**Cuts the output to the allowed length and marks why the run stopped*/
+		void stopped(int reason, StringBuilder output){
+			if(output.length()>maxOutput)
+				output.setLength(maxOutput);
+			output.append(" \u2026(").append(reason==INSTRUCTIONS ? "instruction limit" : reason==OUTPUT ? "output limit" : "time limit").append(" reached)");
+		}
+	}
+	/**The first of the characters standing for the arguments $0 to $9 in a compiled program*/
+	private static final char argch0 = '\uE000';
+	/**The number of compiled programs kept*/
+	private static final int maxCachedPrograms = 256;
+	/**The number of argument lists a compiled program keeps decoded*/
+	private static final int maxBoundArguments = 16;
+	/**The number of runs after which a decoded program is compiled to bytecode; 0 to never compile*/
+	private static volatile int jitThreshold = 100;
+	/**The compiled programs by source, least recently used first*/
+	private static final Map<String, Program> programs = new LinkedHashMap<String, Program>(16, .75f, true){
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Program> eldest){
+			return size()>maxCachedPrograms;
+		}
+	};
+	/**The instructions in the order a line is searched for them; OUT has to be first to print all the other ops*/
+	private static final char[] mnemonics = {op_out, op_rnd, op_mov, op_add, op_sub, op_mul, op_div, op_cmp, op_and, op_orr, op_not, op_lft, op_rgt, op_jmp};
+	private static final AtomicLong compileCount = new AtomicLong();
+	private static final AtomicLong compileNanos = new AtomicLong();
+	private static final AtomicLong cacheHitCount = new AtomicLong();
+	private static final AtomicLong executeCount = new AtomicLong();
+	private static final AtomicLong executeNanos = new AtomicLong();
+	private static final AtomicLong jitCount = new AtomicLong();
+	private static final AtomicLong stoppedCount = new AtomicLong();
+	/**
+	 * A program parsed once, so it can be run any number of times.<br>
+	 * The arguments $0 to $9 are kept as placeholders and filled in when the
+	 * program is run, so one compiled program serves every call of a command.
+	 * Arguments that contain reserved characters could change how the
+	 * program is parsed, so for those the arguments are substituted into the
+	 * source and the result is compiled instead, like it always was.
+	 */
+	private static final class Program{
+		/**The instruction on each line, or 0 if the line is a label*/
+		final char[] ops;
+		/**The operands of each instruction*/
+		final String[] operands;
+		/**The label of each line, or null*/
+		final String[] labels;
+		/**Whether the program refers to its arguments*/
+		final boolean parameterized;
+		/**Whether arguments can be filled in without parsing the program again*/
+		final boolean bindable;
+		/**The decoded program, or null if it depends on the arguments*/
+		final Code code;
+		/**The program decoded for recent arguments, if it depends on them*/
+		private final Map<String, Code> bound = new LinkedHashMap<String, Code>(16, .75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Code> eldest){
+				return size()>maxBoundArguments;
+			}
+		};
+		
+		private Program(char[] ops, String[] operands, String[] labels, boolean parameterized, boolean bindable){
+			this.ops=ops;
+			this.operands=operands;
+			this.labels=labels;
+			this.parameterized=parameterized;
+			this.bindable=bindable;
+			this.code=parameterized ? null : Code.decode(this, null);
+		}
+		/**
+		 * Returns the compiled program for the source, compiling it if it is not cached
+		 * @param cache Whether to cache the program if it has to be compiled
+		 */
+		static Program get(String source, boolean cache){
+			Program program;
+			synchronized(programs){
+				program = programs.get(source);
+			}
+			if(program!=null){
+				cacheHitCount.incrementAndGet();
+				return program;
+			}
+			program = compile(source, true);
+			if(cache)
+				synchronized(programs){
+					programs.put(source, program);
+				}
+			return program;
+		}
+		/**Returns the program decoded for the arguments*/
+		Code bind(String arguments){
+			if(code!=null)
+				return code;
+			Code decoded;
+			synchronized(bound){
+				decoded = bound.get(arguments);
+			}
+			if(decoded==null){
+				long start = System.nanoTime();
+				decoded = Code.decode(this, MicroAssembler.bind(arguments));
+				compileNanos.addAndGet(System.nanoTime()-start);
+				synchronized(bound){
+					bound.put(arguments, decoded);
+				}
+			}
+			return decoded;
+		}
+		/**
+		 * Parses a program.
+		 * @param source The code
+		 * @param template Whether the arguments in <code>source</code> still have to be substituted
+		 */
+		static Program compile(String source, boolean template){
+			long start = System.nanoTime();
+			boolean parameterized = false;
+			if(template){
+				source = source.replace(rvalchesc, ""+rvalchsub);
+				for(int i=0;i<=9;++i){
+					String ref = rvalch+""+i;
+					if(source.contains(ref)){
+						source = source.replace(ref, ""+(char)(argch0+i));
+						parameterized = true;
+					}
+				}
+			}
+			for(ComparisonMask mask : ComparisonMask.values())
+				source=source.replaceAll(mask.getReplTarget(), Integer.toString(mask.getMask()));
+			//Arguments could complete a constant, or be escaped
+			boolean bindable = !parameterized || source.indexOf(ch_const)<0;
+			for(int i=1;bindable && i<source.length();++i)
+				if(isPlaceholder(source.charAt(i)) && source.charAt(i-1)==escvalch)
+					bindable = false;
+			String[] lines=source.split("(?<!\\"+escvalch+")"+delimiter);
+			char[] ops = new char[lines.length];
+			String[] operands = new String[lines.length];
+			String[] labels = new String[lines.length];
+			prolines:
+				for(int i=0; i<lines.length;++i){
+					String line=lines[i].replaceAll("\\"+escvalch+"(.)", "$1");
+					for(char operator : mnemonics)
+					{
+						if(line.indexOf(operator)>=0){
+							String[] lblcmd = line.split("\\"+operator, 2);
+							ops[i] = operator;
+							operands[i] = lblcmd[1];
+							if(!lblcmd[0].isEmpty())
+								labels[i] = lblcmd[0];
+							continue prolines;
+						}
+					}
+					labels[i] = line;
+				}
+			Program program = new Program(ops, operands, labels, parameterized, bindable);
+			compileCount.incrementAndGet();
+			compileNanos.addAndGet(System.nanoTime()-start);
+			return program;
+		}
+	}
+	private static boolean isPlaceholder(char ch){
+		return argch0<=ch && ch<=argch0+9;
+	}
+	/**Whether the arguments can be filled into a compiled program without changing how it is parsed*/
+	private static boolean isBindable(String arguments){
+		for(int i=0;i<arguments.length();++i){
+			char ch = arguments.charAt(i);
+			if(reserved.indexOf(ch)>=0 || ch==rvalchsub || isPlaceholder(ch))
+				return false;
+		}
+		return true;
+	}
+	private static final String reserved = String.join("", getCharacters_reserved());
+	/**Substitutes the arguments into the source, for programs that have to be compiled for them*/
+	private static String substitute(String input, String arguments){
 		String[] progargs=arguments.split(" ");
 		input = input.replace(rvalchesc, ""+rvalchsub);
 		input=input.replace(rvalch+"0", arguments);
 		for(int i=0;i<progargs.length && i<9;++i)
 			input=input.replace(rvalch+""+(i+1), progargs[i]);
-		for(ComparisonMask mask : ComparisonMask.values())
-			input=input.replaceAll(mask.getReplTarget(), Integer.toString(mask.getMask()));
-		String[] lines=input.split("(?<!\\"+escvalch+")"+delimiter);
-		Instruction[] lblinstr = new Instruction[lines.length];
-		String[] lblcmds=new String[lines.length];
-		String line;
-		labels.clear();
-		/*parse the input*/
-		prolines:
-			for(proginstr=0; proginstr<lines.length;++proginstr){
-				line=lines[proginstr];
-				line=line.replaceAll("\\"+escvalch+"(.)", "$1");
-				for(Instruction instruct : instructions)
-				{
-					char operator = instruct.getMne();
-					if(line.indexOf(operator)>=0){
-						String[] lblcmd = line.split("\\"+operator, 2);
-						lblinstr[proginstr] = instruct;
-						lblcmds[proginstr] = lblcmd[1];
-						if(!lblcmd[0].isEmpty())
-							labels.put(lblcmd[0], proginstr-1);
-						continue prolines;
+		return input;
+	}
+	/**The values of the placeholders $0 to $9; an argument that was not given stays as it was written*/
+	private static String[] bind(String arguments){
+		String[] progargs=arguments.split(" ");
+		String[] values = new String[10];
+		values[0] = arguments;
+		for(int i=1;i<=9;++i)
+			values[i] = i<=progargs.length ? progargs[i-1] : rvalch+""+i;
+		return values;
+	}
+	/**Replaces the placeholders in <code>str</code> with their values*/
+	private static String fill(String str, String[] values){
+		if(str==null || values==null)
+			return str;
+		StringBuilder sb = null;
+		for(int i=0;i<str.length();++i){
+			char ch = str.charAt(i);
+			if(isPlaceholder(ch)){
+				if(sb==null)
+					sb = new StringBuilder(str.length()+16).append(str, 0, i);
+				sb.append(values[ch-argch0]);
+			}
+			else if(sb!=null)
+				sb.append(ch);
+		}
+		return sb==null ? str : sb.toString();
+	}
+	/**Returns the program decoded for the arguments, as {@link #assemble(String, String)} would run it*/
+	static Code decode(String input, String arguments){
+		return decode(input, arguments, true);
+	}
+	private static Code decode(String input, String arguments, boolean cache){
+		Program program = Program.get(input, cache);
+		if(!program.bindable || (program.parameterized && !isBindable(arguments)))
+			program = Program.compile(substitute(input, arguments), false);
+		return program.bind(arguments);
+	}
+	/**Runs a compiled program and returns it's output.*/
+	private static String run(Code code, Budget budget){
+		long start = System.nanoTime();
+		String output = code.execute(new Meter(budget));
+		executeCount.incrementAndGet();
+		executeNanos.addAndGet(System.nanoTime()-start);
+		return output;
+	}
+	/**
+	 * A program decoded for the interpreter, with all arguments bound.<br>
+	 * Every line is an opcode with two operands in parallel arrays, so running
+	 * it parses nothing and allocates nothing but the output.
+	 */
+	static final class Code{
+		/**Opcodes*/
+		static final int
+		NOP=0,
+		OUT=1,
+		RND=2,
+		MOV=3,
+		ADD=4,
+		SUB=5,
+		MUL=6,
+		DIV=7,
+		CMP=8,
+		AND=9,
+		ORR=10,
+		NOT=11,
+		LFT=12,
+		RGT=13,
+		JMP=14,
+		/**A line that could not be decoded; fails when it is reached*/
+		ERR=15
+		;
+		/**The opcode of each line*/
+		final int[] ops;
+		/**
+		 * The first operand: the register written by an arithmetic instruction,
+		 * the condition of a jump, the first segment of an output or the error
+		 */
+		final int[] dst;
+		/**
+		 * The second operand: a register or a number, the line before the target
+		 * of a jump or the number of segments of an output
+		 */
+		final int[] src;
+		/**Whether {@link #src} is a number rather than a register*/
+		final boolean[] imm;
+		/**The output segments: a literal by its index if positive, otherwise the register <code>-1-segment</code>*/
+		final int[] segments;
+		final String[] literals;
+		final String[] errors;
+		/**The number of times this program ran, until it is compiled*/
+		private final AtomicInteger runs = new AtomicInteger();
+		/**The program compiled to bytecode, once it ran often enough*/
+		private volatile MicroJit.Compiled compiled;
+		
+		private Code(int[] ops, int[] dst, int[] src, boolean[] imm, int[] segments, String[] literals, String[] errors){
+			this.ops=ops;
+			this.dst=dst;
+			this.src=src;
+			this.imm=imm;
+			this.segments=segments;
+			this.literals=literals;
+			this.errors=errors;
+		}
+		/**
+		 * Decodes a program.
+		 * @param values The values of the arguments, or null if the program has none
+		 */
+		static Code decode(Program program, String[] values){
+			int length = program.ops.length;
+			Map<String, Integer> labels = new HashMap<>();
+			for(int i=0;i<length;++i)
+				if(program.labels[i]!=null)
+					labels.put(fill(program.labels[i], values), i-1);
+			int[] ops = new int[length];
+			int[] dst = new int[length];
+			int[] src = new int[length];
+			boolean[] imm = new boolean[length];
+			List<Integer> segments = new ArrayList<>();
+			List<String> literals = new ArrayList<>();
+			List<String> errors = new ArrayList<>();
+			for(int i=0;i<length;++i){
+				char mne = program.ops[i];
+				if(mne==0)
+					continue;
+				String args = fill(program.operands[i], values);
+				try{
+					switch(mne){
+						case op_out:
+							ops[i] = OUT;
+							dst[i] = segments.size();
+							split(args, segments, literals);
+							src[i] = segments.size()-dst[i];
+							break;
+						case op_not:
+							if(!args.matches(rRegx))
+								throw invalid(args, mne);
+							ops[i] = NOT;
+							dst[i] = correct(args.charAt(0));
+							break;
+						case op_jmp:
+							if(!(args.matches("\\d\\w+") || (args.charAt(0)=='0')))
+								throw invalid(args, mne);
+							int condition = Integer.parseInt(""+args.charAt(0));
+							if(condition==0)
+								break;
+							String target = args.substring(1).toLowerCase();
+							Integer targetline = labels.get(target);
+							if(targetline==null)
+								throw new IllegalArgumentException("No line found with label \""+target+"\"");
+							ops[i] = JMP;
+							dst[i] = condition;
+							src[i] = targetline;
+							break;
+						default:
+							ops[i] = opcode(mne);
+							if(args.matches(rRegx+rRegx))
+								src[i] = correct(args.charAt(1));
+							else if(args.matches(rRegx+"\\-?\\d+")){
+								src[i] = Integer.parseInt(args.substring(1));
+								imm[i] = true;
+							}
+							else
+								throw invalid(args, mne);
+							dst[i] = correct(args.charAt(0));
 					}
+				}catch(RuntimeException e){
+					ops[i] = ERR;
+					dst[i] = errors.size();
+					errors.add(e.getMessage());
 				}
-				labels.put(line, proginstr-1);
 			}
-		output="";
-		try{
-			/*execute the parsed input*/
-			for(proginstr=0; proginstr<lines.length;++proginstr)
-			{
-				Instruction instr = lblinstr[proginstr];
-				if(instr!=null)
-					instr.performAction(lblcmds[proginstr]);
+			int[] segs = new int[segments.size()];
+			for(int i=0;i<segs.length;++i)
+				segs[i] = segments.get(i);
+			return new Code(ops, dst, src, imm, segs, literals.toArray(new String[0]), errors.toArray(new String[0]));
+		}
+		private static int opcode(char mne){
+			switch(mne){
+				case op_rnd: return RND;
+				case op_mov: return MOV;
+				case op_add: return ADD;
+				case op_sub: return SUB;
+				case op_mul: return MUL;
+				case op_div: return DIV;
+				case op_cmp: return CMP;
+				case op_and: return AND;
+				case op_orr: return ORR;
+				case op_lft: return LFT;
+				case op_rgt: return RGT;
+				default: throw new InternalError("Invalid mnemonic "+mne);
+			}
+		}
+		private static IllegalArgumentException invalid(String args, char mne){
+			return new IllegalArgumentException("The argument \""+args+"\" is invalid for the \'"+mne+"\' instruction ");
+		}
+		/**Splits the text of an output into literals and the registers printed with <code>$x</code>*/
+		private static void split(String txt, List<Integer> segments, List<String> literals){
+			int from = 0;
+			for(int i=0;i+1<txt.length();++i){
+				char ch = txt.charAt(i+1);
+				if(txt.charAt(i)!=rvalch || !(('A'<=ch && ch<='Z') || ('a'<=ch && ch<='z')))
+					continue;
+				if(i>from){
+					segments.add(literals.size());
+					literals.add(txt.substring(from, i).replace(rvalchsub, rvalch));
+				}
+				segments.add(-1-correct(ch));
+				from = i+2;
+				++i;
 			}
-		}catch(Exception e){
-			e.printStackTrace();
+			if(from<txt.length()){
+				segments.add(literals.size());
+				literals.add(txt.substring(from).replace(rvalchsub, rvalch));
+			}
+		}
+		/**Runs the program and returns it's output.*/
+		String execute(Meter meter){
+			MicroJit.Compiled compiled = this.compiled;
+			int threshold = jitThreshold;
+			//The run that reaches the threshold first compiles the program; the others go on interpreting it
+			if(compiled==null && threshold>0 && runs.incrementAndGet()>=threshold && runs.getAndSet(Integer.MIN_VALUE)>=threshold){
+				long start = System.nanoTime();
+				compiled = this.compiled = MicroJit.compile(this);
+				if(compiled!=null)
+					jitCount.incrementAndGet();
+				compileNanos.addAndGet(System.nanoTime()-start);
+			}
+			StringBuilder output = new StringBuilder();
+			try{
+				int reason = compiled!=null ? compiled.run(output, meter) : interpret(output, meter);
+				if(reason!=Meter.FINISHED){
+					stoppedCount.incrementAndGet();
+					meter.stopped(reason, output);
+				}
+			}catch(Exception e){
+				e.printStackTrace();
+			}
+			return output.toString();
+		}
+		/**
+		 * Runs the program in the interpreter, appending it's output to <code>output</code>.
+		 * @return Why the program stopped, one of the reasons in {@link Meter}.
+		 */
+		int interpret(StringBuilder output, Meter meter){
+			final int[] ops = this.ops, dst = this.dst, src = this.src;
+			final boolean[] imm = this.imm;
+			final int length = ops.length;
+			int[] registers = new int[26];
+			int compval = ComparisonMask.NOP.getMask();
+			int fuel = 1;
+			for(int pc=0; pc<length; ++pc){
+				if(--fuel==0 && (fuel = meter.refuel())<=0)
+					return -fuel;
+				int d = dst[pc];
+				switch(ops[pc]){
+					case NOP:
+						break;
+					case OUT:
+						for(int s=d, end=d+src[pc]; s<end; ++s){
+							int segment = segments[s];
+							if(segment>=0)
+								output.append(literals[segment]);
+							else
+								output.append(registers[-1-segment]);
+						}
+						if(meter.overflows(output))
+							return Meter.OUTPUT;
+						break;
+					case RND:
+						registers[d] = ThreadLocalRandom.current().nextInt(imm[pc] ? src[pc] : registers[src[pc]]);
+						break;
+					case MOV:
+						registers[d] = imm[pc] ? src[pc] : registers[src[pc]];
+						break;
+					case ADD:
+						registers[d] += imm[pc] ? src[pc] : registers[src[pc]];
+						break;
+					case SUB:
+						registers[d] -= imm[pc] ? src[pc] : registers[src[pc]];
+						break;
+					case MUL:
+						registers[d] *= imm[pc] ? src[pc] : registers[src[pc]];
+						break;
+					case DIV:
+						registers[d] /= imm[pc] ? src[pc] : registers[src[pc]];
+						break;
+					case CMP:{
+						int val1 = registers[d];
+						int val2 = imm[pc] ? src[pc] : registers[src[pc]];
+						compval = (val1>val2 ? ComparisonMask.GTR : val1<val2 ? ComparisonMask.LSS : ComparisonMask.EQU).getMask();
+						break;
+					}
+					case AND:
+						registers[d] &= imm[pc] ? src[pc] : registers[src[pc]];
+						break;
+					case ORR:
+						registers[d] |= imm[pc] ? src[pc] : registers[src[pc]];
+						break;
+					case NOT:
+						registers[d] = ~registers[d];
+						break;
+					case LFT:
+						registers[d] <<= imm[pc] ? src[pc] : registers[src[pc]];
+						break;
+					case RGT:
+						registers[d] >>>= imm[pc] ? src[pc] : registers[src[pc]];
+						break;
+					case JMP:
+						if((compval&d)>0)
+							pc = src[pc];
+						break;
+					case ERR:
+					default:
+						throw new IllegalArgumentException(errors[d]);
+				}
+			}
+			return Meter.FINISHED;
+		}
+	}
+	/**The number of times a program was compiled*/
+	public static long getCompileCount(){
+		return compileCount.get();
+	}
+	/**The total time spent compiling programs, in nanoseconds*/
+	public static long getCompileNanos(){
+		return compileNanos.get();
+	}
+	/**The number of times a compiled program was found in the cache*/
+	public static long getCacheHitCount(){
+		return cacheHitCount.get();
+	}
+	/**The number of programs run*/
+	public static long getExecuteCount(){
+		return executeCount.get();
+	}
+	/**The total time spent running programs, in nanoseconds*/
+	public static long getExecuteNanos(){
+		return executeNanos.get();
+	}
+	/**The number of runs stopped because they exceeded their budget*/
+	public static long getStoppedCount(){
+		return stoppedCount.get();
+	}
+	/**The number of programs compiled to bytecode*/
+	public static long getJitCount(){
+		return jitCount.get();
+	}
+	/**The number of runs after which a program is compiled to bytecode, or 0 if programs are only interpreted*/
+	public static int getJitThreshold(){
+		return jitThreshold;
+	}
+	/**
+	 * Sets the number of runs after which a program is compiled to bytecode.
+	 * @param threshold The number of runs, or 0 to only interpret programs
+	 */
+	public static void setJitThreshold(int threshold){
+		jitThreshold = Math.max(0, threshold);
+	}
+	/**
+	 * Drops the compiled program for the source, such as that of a forgotten
+	 * command, so it's classes can be unloaded.
+	 */
+	public static void forget(String input){
+		synchronized(programs){
+			programs.remove(input);
 		}
-		return output.replace(""+rvalchsub, ""+rvalch);
 	}
 }
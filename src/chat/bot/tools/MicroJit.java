@@ -0,0 +1,487 @@
+package chat.bot.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import chat.bot.tools.MicroAssembler.Code;
+import chat.bot.tools.MicroAssembler.Meter;
+
+/**
+ * Compiles decoded MicroAssembler programs to JVM bytecode.<br>
+ * Every program becomes a hidden class with a single method, in which the
+ * registers are local variables, every line is a branch target and jumps
+ * are conditional branches on the comparison mask. Every line takes fuel
+ * from the run's {@link Meter}, like in the interpreter. A hidden class is only
+ * reachable through its instance, so it is unloaded together with the
+ * program it was compiled from.
+ */
+final class MicroJit{
+	private MicroJit(){}
+	/**A program compiled to bytecode*/
+	interface Compiled{
+		/**
+		 * Runs the program, appending it's output to <code>out</code>.
+		 * @return Why the program stopped, one of the reasons in {@link Meter}.
+		 */
+		int run(StringBuilder out, Meter meter);
+	}
+	/**Java 15, the first version with hidden classes*/
+	private static final int classVersion = 59;
+	private static final String className = "chat/bot/tools/MicroJitProgram";
+	private static final String interfaceName = Compiled.class.getName().replace('.', '/');
+	private static final String meterName = Meter.class.getName().replace('.', '/');
+	/**The local variable of register A; the other registers follow it*/
+	private static final int localA = 3;
+	/**The local variable of the comparison mask*/
+	private static final int localMask = localA+26;
+	/**The local variable of the instructions left until the meter is asked again*/
+	private static final int localFuel = localMask+1;
+	private static final int maxLocals = localFuel+1;
+	private static final int maxStack = 4;
+	/**The bits a jump condition can have in common with a comparison mask*/
+	private static final int maskBits = 0b111;
+
+	/**
+	 * Compiles a program.
+	 * @return The compiled program, or null if it cannot be compiled, for
+	 * example because it is too long for a method.
+	 */
+	static Compiled compile(Code code){
+		try{
+			byte[] bytes = new Generator(code).generate();
+			if(bytes==null)
+				return null;
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			return (Compiled)lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+		}catch(Throwable e){
+			System.err.println("Failed to compile a MicroAssembler program");
+			e.printStackTrace();
+			return null;
+		}
+	}
+	/**Writes the class file of one program*/
+	private static final class Generator{
+		private final Code code;
+		private final ConstantPool pool = new ConstantPool();
+		private final Bytes body = new Bytes();
+		/**The offset of the first instruction of every line, and of the end*/
+		private final int[] lines;
+		/**The offsets of branch instructions and the lines they jump to*/
+		private final List<int[]> branches = new ArrayList<>();
+		/**The offsets that can be reached other than from the previous instruction*/
+		private final TreeSet<Integer> targets = new TreeSet<>();
+
+		Generator(Code code){
+			this.code=code;
+			this.lines=new int[code.ops.length+1];
+		}
+		/**Returns the class file, or null if the program is too long*/
+		byte[] generate() throws IOException{
+			for(int r=0;r<26;++r){
+				body.u1(0x03);//iconst_0
+				istore(localA+r);
+			}
+			body.u1(0x03);
+			istore(localMask);
+			body.u1(0x04);//iconst_1
+			istore(localFuel);
+			for(int pc=0;pc<code.ops.length;++pc){
+				lines[pc] = body.size();
+				targets.add(body.size());
+				fuel();
+				line(pc);
+			}
+			lines[code.ops.length] = body.size();
+			targets.add(body.size());
+			iconst(Meter.FINISHED);
+			body.u1(0xac);//ireturn
+			if(body.size()>Short.MAX_VALUE)
+				return null;
+			for(int[] branch : branches)
+				body.patch2(branch[0]+1, lines[branch[1]]-branch[0]);
+			return classFile();
+		}
+		/**
+		 * Takes one instruction's fuel, and asks the meter for more when there is
+		 * none left: <code>if(--fuel==0 &amp;&amp; (fuel = meter.refuel())&lt;=0) return -fuel;</code>
+		 */
+		private void fuel(){
+			body.u1(0x84);//iinc
+			body.u1(localFuel);
+			body.u1(-1);
+			iload(localFuel);
+			int skip = forward(0x9a);//ifne
+			body.u1(0x2c);//aload_2
+			invoke(0xb6, meterName, "refuel", "()I");
+			body.u1(0x59);//dup
+			istore(localFuel);
+			int skip2 = forward(0x9d);//ifgt
+			iload(localFuel);
+			body.u1(0x74);//ineg
+			body.u1(0xac);//ireturn
+			land(skip);
+			land(skip2);
+		}
+		/**Writes a forward branch, to be pointed at the next {@link #land(int)}*/
+		private int forward(int opcode){
+			int offset = body.size();
+			body.u1(opcode);
+			body.u2(0);
+			return offset;
+		}
+		private void land(int branch){
+			body.patch2(branch+1, body.size()-branch);
+			targets.add(body.size());
+		}
+		private void line(int pc){
+			int d = code.dst[pc];
+			switch(code.ops[pc]){
+				case Code.NOP:
+					break;
+				case Code.OUT:
+					for(int s=d, end=d+code.src[pc]; s<end; ++s){
+						int segment = code.segments[s];
+						body.u1(0x2b);//aload_1
+						if(segment>=0){
+							ldc(pool.string(code.literals[segment]));
+							invoke(0xb6, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
+						}
+						else{
+							iload(localA-1-segment);
+							invoke(0xb6, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;");
+						}
+						body.u1(0x57);//pop
+					}
+					body.u1(0x2c);//aload_2
+					body.u1(0x2b);//aload_1
+					invoke(0xb6, meterName, "overflows", "(Ljava/lang/StringBuilder;)Z");
+					int fits = forward(0x99);//ifeq
+					iconst(Meter.OUTPUT);
+					body.u1(0xac);//ireturn
+					land(fits);
+					break;
+				case Code.RND:
+					invoke(0xb8, "java/util/concurrent/ThreadLocalRandom", "current", "()Ljava/util/concurrent/ThreadLocalRandom;");
+					source(pc);
+					invoke(0xb6, "java/util/concurrent/ThreadLocalRandom", "nextInt", "(I)I");
+					istore(localA+d);
+					break;
+				case Code.MOV:
+					source(pc);
+					istore(localA+d);
+					break;
+				case Code.ADD:
+					arithmetic(pc, 0x60);//iadd
+					break;
+				case Code.SUB:
+					arithmetic(pc, 0x64);//isub
+					break;
+				case Code.MUL:
+					arithmetic(pc, 0x68);//imul
+					break;
+				case Code.DIV:
+					arithmetic(pc, 0x6c);//idiv
+					break;
+				case Code.AND:
+					arithmetic(pc, 0x7e);//iand
+					break;
+				case Code.ORR:
+					arithmetic(pc, 0x80);//ior
+					break;
+				case Code.LFT:
+					arithmetic(pc, 0x78);//ishl
+					break;
+				case Code.RGT:
+					arithmetic(pc, 0x7c);//iushr
+					break;
+				case Code.NOT:
+					iload(localA+d);
+					body.u1(0x02);//iconst_m1
+					body.u1(0x82);//ixor
+					istore(localA+d);
+					break;
+				case Code.CMP:
+					//The mask is 1<<(Integer.compare(a, b)+1): LSS, EQU or GTR
+					iconst(1);
+					iload(localA+d);
+					source(pc);
+					invoke(0xb8, "java/lang/Integer", "compare", "(II)I");
+					iconst(1);
+					body.u1(0x60);//iadd
+					body.u1(0x78);//ishl
+					istore(localMask);
+					break;
+				case Code.JMP:
+					if((d&maskBits)==0)
+						break;
+					iload(localMask);
+					iconst(d);
+					body.u1(0x7e);//iand
+					branches.add(new int[]{body.size(), code.src[pc]+1});
+					body.u1(0x9a);//ifne
+					body.u2(0);
+					break;
+				case Code.ERR:
+				default:
+					body.u1(0xbb);//new
+					body.u2(pool.classref("java/lang/IllegalArgumentException"));
+					body.u1(0x59);//dup
+					if(code.errors[d]==null)
+						body.u1(0x01);//aconst_null
+					else
+						ldc(pool.string(code.errors[d]));
+					invoke(0xb7, "java/lang/IllegalArgumentException", "<init>", "(Ljava/lang/String;)V");
+					body.u1(0xbf);//athrow
+			}
+		}
+		private void arithmetic(int pc, int opcode){
+			int d = code.dst[pc];
+			iload(localA+d);
+			source(pc);
+			body.u1(opcode);
+			istore(localA+d);
+		}
+		/**Pushes the second operand*/
+		private void source(int pc){
+			if(code.imm[pc])
+				iconst(code.src[pc]);
+			else
+				iload(localA+code.src[pc]);
+		}
+		private void iconst(int value){
+			if(-1<=value && value<=5)
+				body.u1(0x03+value);//iconst_<value>
+			else if(Byte.MIN_VALUE<=value && value<=Byte.MAX_VALUE){
+				body.u1(0x10);//bipush
+				body.u1(value);
+			}
+			else if(Short.MIN_VALUE<=value && value<=Short.MAX_VALUE){
+				body.u1(0x11);//sipush
+				body.u2(value);
+			}
+			else
+				ldc(pool.integer(value));
+		}
+		private void ldc(int index){
+			if(index<256){
+				body.u1(0x12);//ldc
+				body.u1(index);
+			}
+			else{
+				body.u1(0x13);//ldc_w
+				body.u2(index);
+			}
+		}
+		private void iload(int local){
+			body.u1(0x15);
+			body.u1(local);
+		}
+		private void istore(int local){
+			body.u1(0x36);
+			body.u1(local);
+		}
+		private void invoke(int opcode, String owner, String name, String descriptor){
+			body.u1(opcode);
+			body.u2(pool.methodref(owner, name, descriptor));
+		}
+		private byte[] classFile() throws IOException{
+			int thisClass = pool.classref(className);
+			int superClass = pool.classref("java/lang/Object");
+			int iface = pool.classref(interfaceName);
+			int objectInit = pool.methodref("java/lang/Object", "<init>", "()V");
+			int codeName = pool.utf8("Code");
+			int stackMapName = pool.utf8("StackMapTable");
+			int initName = pool.utf8("<init>"), initType = pool.utf8("()V");
+			int runName = pool.utf8("run"), runType = pool.utf8("(Ljava/lang/StringBuilder;L"+meterName+";)I");
+			int builderClass = pool.classref("java/lang/StringBuilder");
+			int meterClass = pool.classref(meterName);
+			byte[] frames = frames(thisClass, builderClass, meterClass);
+
+			Bytes out = new Bytes();
+			out.u4(0xCAFEBABE);
+			out.u2(0);
+			out.u2(classVersion);
+			pool.write(out);
+			out.u2(0x0010|0x0020);//ACC_FINAL|ACC_SUPER
+			out.u2(thisClass);
+			out.u2(superClass);
+			out.u2(1);
+			out.u2(iface);
+			out.u2(0);//fields
+			out.u2(2);//methods
+			//public <init>()
+			out.u2(0x0001);
+			out.u2(initName);
+			out.u2(initType);
+			out.u2(1);
+			out.u2(codeName);
+			out.u4(2+2+4+5+2+2);
+			out.u2(1);
+			out.u2(1);
+			out.u4(5);
+			out.u1(0x2a);//aload_0
+			out.u1(0xb7);//invokespecial
+			out.u2(objectInit);
+			out.u1(0xb1);//return
+			out.u2(0);
+			out.u2(0);
+			//public int run(StringBuilder, Meter)
+			out.u2(0x0001);
+			out.u2(runName);
+			out.u2(runType);
+			out.u2(1);
+			out.u2(codeName);
+			out.u4(2+2+4+body.size()+2+2+2+4+frames.length);
+			out.u2(maxStack);
+			out.u2(maxLocals);
+			out.u4(body.size());
+			out.bytes(body.toByteArray());
+			out.u2(0);//exception table
+			out.u2(1);
+			out.u2(stackMapName);
+			out.u4(frames.length);
+			out.bytes(frames);
+			out.u2(0);//class attributes
+			return out.toByteArray();
+		}
+		/**
+		 * A frame at every branch target and the start of every line. The
+		 * locals are the same everywhere and the stack is always empty there,
+		 * so only the first frame lists them.
+		 */
+		private byte[] frames(int thisClass, int builderClass, int meterClass){
+			Bytes frames = new Bytes();
+			int count = 0, last = -1;
+			for(int offset : targets){
+				int delta = last<0 ? offset : offset-last-1;
+				if(last<0){
+					frames.u1(255);//full_frame
+					frames.u2(delta);
+					frames.u2(maxLocals);
+					frames.u1(7);//Object
+					frames.u2(thisClass);
+					frames.u1(7);
+					frames.u2(builderClass);
+					frames.u1(7);
+					frames.u2(meterClass);
+					for(int i=localA;i<maxLocals;++i)
+						frames.u1(1);//Integer
+					frames.u2(0);
+				}
+				else if(delta<64)
+					frames.u1(delta);//same_frame
+				else{
+					frames.u1(251);//same_frame_extended
+					frames.u2(delta);
+				}
+				last = offset;
+				++count;
+			}
+			Bytes table = new Bytes();
+			table.u2(count);
+			table.bytes(frames.toByteArray());
+			return table.toByteArray();
+		}
+	}
+	/**The constant pool of a class file; equal constants are only added once*/
+	private static final class ConstantPool{
+		private final Bytes bytes = new Bytes();
+		private final Map<String, Integer> indices = new HashMap<>();
+		private int count = 1;
+
+		private int add(String key, Bytes entry){
+			Integer index = indices.get(key);
+			if(index==null){
+				index = count++;
+				indices.put(key, index);
+				bytes.bytes(entry.toByteArray());
+			}
+			return index;
+		}
+		int utf8(String str){
+			Bytes entry = new Bytes();
+			entry.u1(1);
+			entry.utf(str);
+			return add("U"+str, entry);
+		}
+		int integer(int value){
+			Bytes entry = new Bytes();
+			entry.u1(3);
+			entry.u4(value);
+			return add("I"+value, entry);
+		}
+		int classref(String name){
+			int utf = utf8(name);
+			Bytes entry = new Bytes();
+			entry.u1(7);
+			entry.u2(utf);
+			return add("C"+name, entry);
+		}
+		int string(String str){
+			int utf = utf8(str);
+			Bytes entry = new Bytes();
+			entry.u1(8);
+			entry.u2(utf);
+			return add("S"+str, entry);
+		}
+		int methodref(String owner, String name, String descriptor){
+			int ownerIndex = classref(owner);
+			int nameIndex = utf8(name), typeIndex = utf8(descriptor);
+			Bytes nameAndType = new Bytes();
+			nameAndType.u1(12);
+			nameAndType.u2(nameIndex);
+			nameAndType.u2(typeIndex);
+			int nameAndTypeIndex = add("N"+name+' '+descriptor, nameAndType);
+			Bytes entry = new Bytes();
+			entry.u1(10);
+			entry.u2(ownerIndex);
+			entry.u2(nameAndTypeIndex);
+			return add("M"+owner+'.'+name+descriptor, entry);
+		}
+		void write(Bytes out){
+			out.u2(count);
+			out.bytes(bytes.toByteArray());
+		}
+	}
+	/**A byte buffer that writes big-endian values, as class files are*/
+	private static final class Bytes extends ByteArrayOutputStream{
+		private final DataOutputStream data = new DataOutputStream(this);
+
+		void u1(int value){
+			write(value);
+		}
+		void u2(int value){
+			write(value>>>8);
+			write(value);
+		}
+		void u4(int value){
+			u2(value>>>16);
+			u2(value);
+		}
+		void bytes(byte[] value){
+			write(value, 0, value.length);
+		}
+		/**Writes a string in modified UTF-8 with it's length
+		 * @throws IllegalArgumentException if it is too long for a class file
+		 */
+		void utf(String str){
+			try{
+				data.writeUTF(str);
+			}catch(IOException e){
+				throw new IllegalArgumentException("Constant too long for a class file", e);
+			}
+		}
+		/**Overwrites two bytes*/
+		void patch2(int offset, int value){
+			buf[offset] = (byte)(value>>>8);
+			buf[offset+1] = (byte)value;
+		}
+	}
+}
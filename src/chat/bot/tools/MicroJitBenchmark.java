@@ -0,0 +1,62 @@
+package chat.bot.tools;
+
+/**
+ * Compares running MicroAssembler programs in the interpreter against
+ * running them compiled to bytecode by {@link MicroJit}.<br>
+ * Usage: <code>MicroJitBenchmark [loop count] [iterations]</code>
+ */
+final class MicroJitBenchmark
+{
+	private MicroJitBenchmark(){}
+
+	/**Sums the numbers up to $1, with a branch in every iteration*/
+	private static final String sum = "=d0;=t0;l1?d$1;#6end;+td;&t%GEQ%;+d1;#1l1;end\"total=$t";
+	/**Rolls $1 $2-sided dice, printing each roll*/
+	private static final String rolldice = "\"Rolling $1 $2-sided dice: ;=b$2;=d0;=t0;l1?d$1;#6end;!ab;+a1;+ta;\"$a ;+d1;#1l1;end\" total=$t";
+	private static final String cointoss = "!a2;?a0;#2h;\"Tails;#7e;h\"Heads;e\"";
+
+	public static void main(String[] args)
+	{
+		String count = args.length>0 ? args[0] : "10000";
+		int iterations = args.length>1 ? Integer.parseInt(args[1]) : 200;
+		MicroAssembler.setJitThreshold(0);
+		System.out.println("Loop count "+count+", "+iterations+" iterations");
+		run("sum", sum, count, iterations);
+		run("rolldice", rolldice, count+" 6", iterations);
+		run("cointoss", cointoss, "", iterations*1000);
+	}
+	private static void run(String name, String program, String arguments, int iterations)
+	{
+		MicroAssembler.Code code = MicroAssembler.decode(program, arguments);
+		MicroJit.Compiled compiled = MicroJit.compile(code);
+		if(compiled==null){
+			System.out.println(name+": could not be compiled");
+			return;
+		}
+		long sink = 0;
+		for(int i=0;i<iterations;++i)
+			sink += interpret(code)+jit(compiled);
+		long start = System.nanoTime();
+		for(int i=0;i<iterations;++i)
+			sink += interpret(code);
+		long interpreterNanos = (System.nanoTime()-start)/iterations;
+		start = System.nanoTime();
+		for(int i=0;i<iterations;++i)
+			sink += jit(compiled);
+		long jitNanos = (System.nanoTime()-start)/iterations;
+		System.out.println(name+": interpreter "+interpreterNanos+" ns/run, bytecode "+jitNanos+" ns/run ("
+				+String.format("%.1f", (double)interpreterNanos/jitNanos)+"x, checksum "+sink+")");
+	}
+	private static int interpret(MicroAssembler.Code code)
+	{
+		StringBuilder out = new StringBuilder();
+		code.interpret(out, new MicroAssembler.Meter(MicroAssembler.Budget.UNLIMITED));
+		return out.length();
+	}
+	private static int jit(MicroJit.Compiled compiled)
+	{
+		StringBuilder out = new StringBuilder();
+		compiled.run(out, new MicroAssembler.Meter(MicroAssembler.Budget.UNLIMITED));
+		return out.length();
+	}
+}
@@ -6,7 +6,6 @@ import static utils.Utils.getNumValueJSON;
 import static utils.Utils.getStringValueJSON;
 import static utils.Utils.replaceAllAll;
 import static utils.Utils.unescapeHtml;
-import static utils.WebRequest.GET;
 
 public class ChatEvent extends JsonObject<ChatEvent>
 {
@@ -23,8 +22,12 @@ public class ChatEvent extends JsonObject<ChatEvent>
 	private final long id;
 	/**The id of the message affected.*/
 	private final long message_id;
-	/**The content of the event.*/
-	private final String content;
+	/**The number of times the message affected has been edited.*/
+	private final long message_edits;
+	/**The HTML content of the event, as sent with the event.*/
+	private final String inline_content;
+	/**The plain content of the event; loaded on first use.*/
+	private volatile String content;
 	/**The room id in which this event took place.*/
 	private final long room_id;
 	/**The room name in which this event took place.*/
@@ -57,25 +60,61 @@ public class ChatEvent extends JsonObject<ChatEvent>
 		user_name = unescapeHtml(getStringValueJSON("user_name", raweventjson));
 		parent_id = getNumValueJSON("parent_id", raweventjson);
 		target_user_id = getNumValueJSON("target_user_id", raweventjson);
+		message_edits = getNumValueJSON("message_edits", raweventjson);
+		String inlinecontent;
+		try{
+			inlinecontent = getStringValueJSON("content", raweventjson);
+		}catch(Exception e){
+			inlinecontent = null;
+		}
+		inline_content = inlinecontent;
 		
-		String plaincontent = null;
-		if(message_id!=0){
+		//System.out.println("Received event: "+raweventjson);
+	}
+	/**
+	 * Creates an event from the fields read by a {@link ChatEventDecoder}.
+	 */
+	ChatEvent(final ChatEventDecoder.Fields fields, final ChatSite chatsite)
+	{
+		rawEventJson = fields.raw();
+		CHATSITE = chatsite;
+		event_type = EventType.forEventId(fields.event_type);
+		time_stamp = fields.time_stamp;
+		id = fields.id;
+		message_id = fields.message_id;
+		message_stars = fields.message_stars;
+		room_id = fields.room_id;
+		room_name = fields.room_name==null ? null : unescapeHtml(fields.room_name);
+		user_id = fields.user_id;
+		user_name = fields.user_name==null ? null : unescapeHtml(fields.user_name);
+		parent_id = fields.parent_id;
+		target_user_id = fields.target_user_id;
+		message_edits = fields.message_edits;
+		inline_content = fields.content;
+	}
+	/**
+	 * Gets the plain text of the message.<br>
+	 * Content without markup is taken from the event itself; anything else is
+	 * fetched from the server, falling back to the event's content on failure.
+	 * @return the content, or {@code null} if the event does not refer to a message.
+	 */
+	private String loadContent()
+	{
+		if(message_id==0)
+			return null;
+		if(inline_content!=null && inline_content.indexOf('<')<0)
+			return unescapeHtml(inline_content);
+		try{
+			return PlainContentCache.get(CHATSITE, room_id, message_id, message_edits);
+		}
+		catch(Exception e1){
 			try{
-				plaincontent = GET("https://"+CHATSITE.getUrl()+"/messages/"+room_id+'/'+message_id+"?plain=true");
-			}
-			catch(Exception e1){
-				try{
-					plaincontent = unescapeHtml(getStringValueJSON("content", raweventjson));
-				}catch(Exception e3){
-					System.err.println("Full Erroring text:\n"+raweventjson);
-					plaincontent="";
-				}
+				return unescapeHtml(inline_content);
+			}catch(Exception e3){
+				System.err.println("Full Erroring text:\n"+rawEventJson);
+				return "";
 			}
 		}
-		
-		content = plaincontent;
-		
-		//System.out.println("Received event: "+raweventjson);
 	}
 	
 	/**
@@ -99,8 +138,18 @@ public class ChatEvent extends JsonObject<ChatEvent>
 	public long getMessageId(){
 		return message_id;
 	}
+	/**
+	 * The plain content of the event, loaded on the first call.
+	 * @return the content, or {@code null} if the event does not refer to a message.
+	 */
 	public String getContent(){
-		return content;
+		String c = content;
+		if(c==null && message_id!=0)
+			content = c = loadContent();
+		return c;
+	}
+	public long getMessageEdits(){
+		return message_edits;
 	}
 	public long getMessage_stars()
 	{
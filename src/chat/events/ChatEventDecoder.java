@@ -0,0 +1,188 @@
+package chat.events;
+
+import java.util.function.Consumer;
+import chat.ChatSite;
+import utils.json.JsonReader;
+import utils.json.JsonReader.Token;
+
+/**
+ * Decodes the response of a chat server's <code>/events</code> endpoint in a single pass.<br>
+ * The response has the form
+ * <pre>{"r139":{"e":[{...},{...}],"t":123,"d":2},"r1":{"t":123,"d":2}}</pre>
+ * Every object of an <code>"e"</code> array is handed over as a {@link ChatEvent}
+ * as soon as its closing brace has been read.
+ */
+public final class ChatEventDecoder
+{
+	/**Receives the fields of each event read from the response.*/
+	interface FieldSink
+	{
+		public abstract void accept(Fields fields);
+	}
+	/**
+	 * The fields of the event currently being read.<br>
+	 * A single instance is reused for every event in a response.
+	 */
+	static final class Fields
+	{
+		long event_type, time_stamp, id, message_id, message_stars, message_edits,
+			room_id, user_id, parent_id, target_user_id;
+		String room_name, user_name, content;
+		private CharSequence source;
+		private int start, end;
+		private void clear(CharSequence source)
+		{
+			event_type=time_stamp=id=message_id=message_stars=message_edits=0;
+			room_id=user_id=parent_id=target_user_id=0;
+			room_name=user_name=content=null;
+			this.source=source;
+		}
+		/**The raw JSON text of this event.*/
+		String raw()
+		{
+			return source.subSequence(start, end).toString();
+		}
+	}
+	/**The corresponding chat site.*/
+	private final ChatSite CHATSITE;
+
+	public ChatEventDecoder(ChatSite chatsite)
+	{
+		CHATSITE=chatsite;
+	}
+	/**
+	 * Decodes the events contained in <code>response</code>.
+	 * @param response The body of an <code>/events</code> response.
+	 * @param sink Receives every event, in the order they appear in the response.
+	 * If {@code null}, the events are skipped without being decoded.
+	 * @return The largest <code>"t"</code> value in the response, or -1 if there is none.
+	 * @throws IllegalArgumentException if the response is malformed.
+	 */
+	public long decode(CharSequence response, Consumer<? super ChatEvent> sink)
+	{
+		return decodeFields(response, sink==null ? null : (fields)->{
+			sink.accept(new ChatEvent(fields, CHATSITE));
+		});
+	}
+	/**
+	 * Decodes a JSON array of events, such as the <code>"e"</code> member of a
+	 * response. The brackets may be omitted.
+	 * @param raweventarrayjson The events.
+	 * @param sink Receives every event, in the order they appear.
+	 * @throws IllegalArgumentException if the JSON is malformed.
+	 */
+	public void decodeArray(CharSequence raweventarrayjson, Consumer<? super ChatEvent> sink)
+	{
+		JsonReader reader = new JsonReader(raweventarrayjson);
+		Fields fields = new Fields();
+		boolean bracketed = reader.peek()==Token.BEGIN_ARRAY;
+		if(bracketed)
+			reader.beginArray();
+		while(reader.hasNext()){
+			readEvent(reader, raweventarrayjson, fields);
+			sink.accept(new ChatEvent(fields, CHATSITE));
+		}
+		if(bracketed)
+			reader.endArray();
+	}
+	long decodeFields(CharSequence response, FieldSink sink)
+	{
+		JsonReader reader = new JsonReader(response);
+		Fields fields = new Fields();
+		long t = -1;
+		reader.beginObject();
+		while(reader.hasNext()){
+			reader.nextName();
+			if(reader.peek()!=Token.BEGIN_OBJECT){
+				reader.skipValue();
+				continue;
+			}
+			reader.beginObject();
+			while(reader.hasNext()){
+				switch(reader.nextName()){
+					case "t":
+						t = Math.max(t, reader.nextLong());
+						break;
+					case "e":
+						if(sink==null || reader.peek()!=Token.BEGIN_ARRAY){
+							reader.skipValue();
+							break;
+						}
+						reader.beginArray();
+						while(reader.hasNext()){
+							readEvent(reader, response, fields);
+							sink.accept(fields);
+						}
+						reader.endArray();
+						break;
+					default:
+						reader.skipValue();
+						break;
+				}
+			}
+			reader.endObject();
+		}
+		reader.endObject();
+		return t;
+	}
+	private static void readEvent(JsonReader reader, CharSequence source, Fields fields)
+	{
+		fields.clear(source);
+		reader.peek();
+		fields.start = reader.position();
+		reader.beginObject();
+		while(reader.hasNext()){
+			String name = reader.nextName();
+			if(reader.peek()==Token.NULL){
+				reader.nextNull();
+				continue;
+			}
+			switch(name){
+				case "event_type":
+					fields.event_type = reader.nextLong();
+					break;
+				case "time_stamp":
+					fields.time_stamp = reader.nextLong();
+					break;
+				case "id":
+					fields.id = reader.nextLong();
+					break;
+				case "message_id":
+					fields.message_id = reader.nextLong();
+					break;
+				case "message_stars":
+					fields.message_stars = reader.nextLong();
+					break;
+				case "message_edits":
+					fields.message_edits = reader.nextLong();
+					break;
+				case "room_id":
+					fields.room_id = reader.nextLong();
+					break;
+				case "user_id":
+					fields.user_id = reader.nextLong();
+					break;
+				case "parent_id":
+					fields.parent_id = reader.nextLong();
+					break;
+				case "target_user_id":
+					fields.target_user_id = reader.nextLong();
+					break;
+				case "room_name":
+					fields.room_name = reader.nextString();
+					break;
+				case "user_name":
+					fields.user_name = reader.nextString();
+					break;
+				case "content":
+					fields.content = reader.nextString();
+					break;
+				default:
+					reader.skipValue();
+					break;
+			}
+		}
+		reader.endObject();
+		fields.end = reader.position();
+	}
+}
@@ -0,0 +1,123 @@
+package chat.events;
+
+import static utils.Utils.getNumValueJSON;
+import static utils.Utils.getStringValueJSON;
+import chat.ChatSite;
+import utils.js.JavaScriptArray;
+
+/**
+ * Compares {@link ChatEventDecoder} with the script engine round-trip that
+ * <code>ChatIO.getChatEvents()</code> used previously.<br>
+ * Neither path fetches message content, so only decoding is measured.<br>
+ * Usage: <code>ChatEventDecoderBenchmark [rooms] [events per room] [iterations]</code>
+ */
+final class ChatEventDecoderBenchmark
+{
+	private ChatEventDecoderBenchmark(){}
+
+	private static final String[] eventFieldNames = {
+			"event_type", "time_stamp", "id", "message_id", "message_stars",
+			"room_id", "user_id", "parent_id", "target_user_id",
+	};
+
+	/**Builds a response in the format of the <code>/events</code> endpoint.*/
+	static String makeResponse(int rooms, int eventsPerRoom)
+	{
+		StringBuilder sb = new StringBuilder("{");
+		long id = 1000000;
+		for(int r=0;r<rooms;++r){
+			if(r>0)
+				sb.append(',');
+			sb.append("\"r").append(100+r).append("\":{\"e\":[");
+			for(int e=0;e<eventsPerRoom;++e){
+				if(e>0)
+					sb.append(',');
+				++id;
+				sb.append("{\"event_type\":1,\"time_stamp\":").append(1500000000+id)
+					.append(",\"content\":\"message number ").append(id)
+					.append(" with an \\\"escaped\\\" quote and &lt;html&gt;\"")
+					.append(",\"id\":").append(id)
+					.append(",\"user_id\":").append(id%97)
+					.append(",\"user_name\":\"user").append(id%97)
+					.append("\",\"room_id\":").append(100+r)
+					.append(",\"room_name\":\"Room ").append(r)
+					.append("\",\"message_id\":").append(id*3)
+					.append(",\"parent_id\":").append(id*3-1)
+					.append(",\"show_parent\":true}");
+			}
+			sb.append("],\"t\":").append(id).append(",\"d\":").append(eventsPerRoom).append('}');
+		}
+		return sb.append('}').toString();
+	}
+	/**The previous path: flatten with a script, split with a regex, extract with regexes.*/
+	private static long legacy(String response) throws Exception
+	{
+		String jsf = "var a=" + response + ";var list=[];for(var i in a){"
+				+ " var b=a[i].e;"
+				+ " if(b)"
+				+ "  for(var j in b)"
+				+ "   list.push(JSON.stringify(b[j]))"
+				+ "}"
+				+ "return list;";
+		String[] result = JavaScriptArray.fromResult(jsf).to(String[].class);
+		long checksum = 0;
+		for(String raweventarrayjson : result){
+			String[] messages = raweventarrayjson.substring(1,
+					raweventarrayjson.length()-1).split("\\},\\{(?=\"event_type\")");
+			for(String message : messages){
+				for(String field : eventFieldNames)
+					checksum += getNumValueJSON(field, message);
+				checksum += getStringValueJSON("room_name", message).length();
+				checksum += getStringValueJSON("user_name", message).length();
+				checksum += getStringValueJSON("content", message).length();
+			}
+		}
+		return checksum;
+	}
+	private static long decoder(ChatEventDecoder decoder, String response)
+	{
+		final long[] checksum = {0};
+		decoder.decodeFields(response, (fields)->{
+			checksum[0] += fields.event_type + fields.time_stamp + fields.id
+					+ fields.message_id + fields.message_stars + fields.room_id
+					+ fields.user_id + fields.parent_id + fields.target_user_id
+					+ fields.room_name.length() + fields.user_name.length()
+					+ fields.content.length();
+		});
+		return checksum[0];
+	}
+	public static void main(String[] args) throws Exception
+	{
+		int rooms = args.length>0 ? Integer.parseInt(args[0]) : 4;
+		int eventsPerRoom = args.length>1 ? Integer.parseInt(args[1]) : 25;
+		int iterations = args.length>2 ? Integer.parseInt(args[2]) : 2000;
+		String response = makeResponse(rooms, eventsPerRoom);
+		ChatEventDecoder decoder = new ChatEventDecoder(ChatSite.STACKOVERFLOW);
+		System.out.println("Response: "+rooms+" rooms x "+eventsPerRoom+" events, "
+				+response.length()+" chars, "+iterations+" iterations");
+
+		long sink = 0;
+		for(int i=0;i<iterations;++i)
+			sink += decoder(decoder, response);
+		long start = System.nanoTime();
+		for(int i=0;i<iterations;++i)
+			sink += decoder(decoder, response);
+		long decoderNanos = (System.nanoTime()-start)/iterations;
+		System.out.println("ChatEventDecoder: "+decoderNanos+" ns/response");
+
+		try{
+			for(int i=0;i<Math.min(iterations, 200);++i)
+				sink += legacy(response);
+			start = System.nanoTime();
+			for(int i=0;i<iterations;++i)
+				sink += legacy(response);
+			long legacyNanos = (System.nanoTime()-start)/iterations;
+			System.out.println("Script engine + regex: "+legacyNanos+" ns/response ("
+					+String.format("%.1f", (double)legacyNanos/decoderNanos)+"x)");
+		}
+		catch(Exception | LinkageError e){
+			System.out.println("Script engine + regex: unavailable ("+e+")");
+		}
+		System.out.println("(checksum "+sink+")");
+	}
+}
@@ -1,10 +1,68 @@
 package chat.events;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.function.Consumer;
 import chat.ChatSite;
 
 public class ChatEventList extends utils.json.JsonList<ChatEvent>
 {
+	/**
+	 * Collects events into a {@link ChatEventList} as they are decoded.<br>
+	 * Events whose id was already added are dropped. Events are kept in the
+	 * order they arrive and sorted by timestamp once in {@link #build()}, and
+	 * only if some event arrived out of order.
+	 */
+	public static final class Builder implements Consumer<ChatEvent>
+	{
+		private final ArrayList<ChatEvent> events = new ArrayList<>();
+		private final HashSet<Long> ids = new HashSet<>();
+		private boolean sorted = true;
+		/**
+		 * Adds an event unless an event with the same id was already added.
+		 * @return {@code true} iff the event was added.
+		 */
+		public boolean add(ChatEvent event)
+		{
+			if(!ids.add(event.getId()))
+				return false;
+			if(sorted && !events.isEmpty() && events.get(events.size()-1).compareTo(event)>0)
+				sorted = false;
+			events.add(event);
+			return true;
+		}
+		public void accept(ChatEvent event)
+		{
+			add(event);
+		}
+		/**
+		 * Adds the events of a JSON array of events.
+		 * @throws IllegalArgumentException if the JSON is malformed.
+		 */
+		public Builder addAll(CharSequence raweventarrayjson, ChatSite chatsite)
+		{
+			new ChatEventDecoder(chatsite).decodeArray(raweventarrayjson, this);
+			return this;
+		}
+		/**
+		 * The number of events added so far.
+		 */
+		public int size()
+		{
+			return events.size();
+		}
+		public ChatEventList build()
+		{
+			if(!sorted){
+				//Stable, so events with the same timestamp keep their order
+				events.sort(null);
+				sorted = true;
+			}
+			ChatEventList list = new ChatEventList();
+			list.addAll(events);
+			return list;
+		}
+	}
 	public ChatEventList()
 	{
 		super();
@@ -12,19 +70,17 @@ public class ChatEventList extends utils.json.JsonList<ChatEvent>
 	public ChatEventList(Iterable<String> eventlists, ChatSite chatsite)
 	{
 		super();
+		Builder builder = new Builder();
 		eventlists.forEach((raweventarrayjson)->
 		{
-			String[] messages = raweventarrayjson.substring(1, 
-					raweventarrayjson.length()-1).split("\\},\\{(?=\"event_type\")");
-			for(int i=0; i<messages.length; ++i)
-				this.add(new ChatEvent(messages[i], chatsite));
+			builder.addAll(raweventarrayjson, chatsite);
 		});
-		this.sort(null);
+		this.addAll(builder.build());
 	}
 	public ChatEventList(String raweventarrayjson, ChatSite chatsite)
 	{
-		this(Arrays.asList(raweventarrayjson.split("\\},\\{(?=\"event_type\")")),chatsite);
-		this.sort(null);
+		super();
+		this.addAll(new Builder().addAll(raweventarrayjson, chatsite).build());
 	}
 	
 	public ChatEventList getEventsWithTypes(EventType... type){
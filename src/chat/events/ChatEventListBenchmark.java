@@ -0,0 +1,98 @@
+package chat.events;
+
+import java.util.LinkedList;
+import chat.ChatSite;
+
+/**
+ * Compares building a {@link ChatEventList} with {@link ChatEventList.Builder}
+ * against the previous path: deduplicating the raw event strings with
+ * {@link LinkedList#contains(Object)}, splitting them with a regex and sorting.<br>
+ * Each batch holds the same events under several rooms, as happens with
+ * mentions and replies, with timestamps interleaved across rooms.<br>
+ * Usage: <code>ChatEventListBenchmark [events per batch] [iterations]</code>
+ */
+final class ChatEventListBenchmark
+{
+	private ChatEventListBenchmark(){}
+
+	private static final int rooms = 4;
+	/**Every n-th event also appears in the next room.*/
+	private static final int duplicateEvery = 5;
+
+	private static String event(long id, int room)
+	{
+		return "{\"event_type\":1,\"time_stamp\":"+(1500000000+id)
+				+",\"content\":\"message number "+id+"\",\"id\":"+id
+				+",\"user_id\":"+(id%97)+",\"user_name\":\"user"+(id%97)
+				+"\",\"room_id\":"+(100+room)+",\"room_name\":\"Room "+room
+				+"\",\"message_id\":"+(id*3)+"}";
+	}
+	public static void main(String[] args)
+	{
+		int events = args.length>0 ? Integer.parseInt(args[0]) : 1000;
+		int iterations = args.length>1 ? Integer.parseInt(args[1]) : 200;
+
+		//The events as the previous path received them: one string per event
+		LinkedList<String> rawevents = new LinkedList<>();
+		StringBuilder response = new StringBuilder("{");
+		for(int r=0;r<rooms;++r){
+			response.append(r>0?",":"").append("\"r").append(100+r).append("\":{\"e\":[");
+			boolean first = true;
+			for(long id=r; id<events; id+=rooms){
+				String e = event(id, r);
+				rawevents.add(e);
+				response.append(first?"":",").append(e);
+				first = false;
+				if(id%duplicateEvery==0){
+					e = event(id, r);
+					rawevents.add(e);
+					response.append(',').append(e);
+				}
+			}
+			response.append("],\"t\":").append(events).append('}');
+		}
+		response.append('}');
+		String body = response.toString();
+		ChatEventDecoder decoder = new ChatEventDecoder(ChatSite.STACKOVERFLOW);
+		System.out.println("Batch: "+rawevents.size()+" raw events, "+events+" unique, "
+				+iterations+" iterations");
+
+		long sink = 0;
+		for(int i=0;i<iterations;++i)
+			sink += legacy(rawevents).size()+builder(decoder, body).size();
+		long start = System.nanoTime();
+		for(int i=0;i<iterations;++i)
+			sink += legacy(rawevents).size();
+		long legacyNanos = (System.nanoTime()-start)/iterations;
+		start = System.nanoTime();
+		for(int i=0;i<iterations;++i)
+			sink += builder(decoder, body).size();
+		long builderNanos = (System.nanoTime()-start)/iterations;
+		System.out.println("LinkedList.contains + regex split + sort: "+legacyNanos/1000+" us/batch");
+		System.out.println("Decoder + ChatEventList.Builder: "+builderNanos/1000+" us/batch ("
+				+String.format("%.1f", (double)legacyNanos/builderNanos)+"x)");
+		System.out.println("(checksum "+sink+")");
+	}
+	private static ChatEventList legacy(LinkedList<String> rawevents)
+	{
+		LinkedList<String> eventlists = new LinkedList<String>();
+		for(String event : rawevents)
+			if(!eventlists.contains(event))
+				eventlists.add(event);
+		ChatEventList list = new ChatEventList();
+		for(String raweventarrayjson : eventlists){
+			String[] messages = raweventarrayjson.substring(1,
+					raweventarrayjson.length()-1).split("\\},\\{(?=\"event_type\")");
+			for(int i=0; i<messages.length; ++i)
+				list.add(new ChatEvent(messages[i], ChatSite.STACKOVERFLOW));
+		}
+		list.sort(null);
+		return list;
+	}
+	private static ChatEventList builder(ChatEventDecoder decoder, String body)
+	{
+		ChatEventList.Builder builder = new ChatEventList.Builder();
+		decoder.decode(body, builder);
+		return builder.build();
+	}
+}
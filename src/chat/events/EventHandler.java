@@ -6,17 +6,21 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import chat.ChatSite;
+import chat.bot.BoundedDispatcher;
 import chat.bot.ChatBot;
+import chat.bot.Dispatcher;
 import chat.bot.tools.MicroAsmExamples;
 import chat.bot.tools.MicroAssembler;
 import chat.io.ErrorMessages;
 import chat.io.ErrorMessages.ErrorType;
+import utils.Deadline;
+import utils.DeadlineScheduler;
 import utils.Utils;
 import static utils.Utils.parseLongs;
 import static utils.Utils.urlencode;
@@ -29,50 +33,38 @@ public abstract class EventHandler
 	{
 		public abstract void run(ChatEvent event, String args);
 	}
-	private static final int MIN_MENTION_LENGTH = 3;
 	private static final long MAX_COMMAND_TIME = 30000;// 30 seconds
 	private static final long WAVE_TIMER_SLEEP = 60000*5;// 60 seconds *5
-	private static final String waveRight = "o/", waveLeft = "\\o";
 	private static final String cmdfileext = ".txt";
 	private static volatile int instanceNumber = 1;
 	private final String savedir = System.getProperty("user.dir")+"/SEChatBot/"
 			+(instanceNumber++);
 	private final String cmdSaveDirectory = savedir+"/commands/";
 	private final String roomSaveDirectory = savedir+"/rooms/";
-	private Map<String, Command> commands = new TreeMap<>();
-	private Map<String, Command> builtincommands = new TreeMap<>();
+	/**
+	 * Sorted, and safe to read while rooms are handled in parallel; changes
+	 * that check first are made under <code>synchronized(commands)</code>.
+	 */
+	private Map<String, Command> commands = new ConcurrentSkipListMap<>();
+	private Map<String, Command> builtincommands = new ConcurrentSkipListMap<>();
+	/**The source of each learned command.*/
+	private Map<String, String> commandsources = new ConcurrentSkipListMap<>();
 	private String trigger;
-	private volatile boolean justWaved = false;
-	private static final String regex_emoji_fitz = "(?:\uD83C[\uDFFB-\uDFFF])?";
-	private static final String wave_emoji_plain = "\uD83D\uDC4B";
-	private static final String regex_wave_emoji = wave_emoji_plain + regex_emoji_fitz;
+	/**The number of times each command timed out.*/
+	private final Map<String, Long> commandtimeouts = new ConcurrentHashMap<>();
+	private volatile Dispatcher commanddispatcher = new BoundedDispatcher("Command", 8, 64, true);
+	/**Whether the bot waved recently; shared by the handlers of all rooms.*/
+	private final AtomicBoolean justWaved = new AtomicBoolean();
+	private volatile MessageClassifier classifier;
 	
-	private Runnable waveTimer = ()->{
-		try{
-			Thread.sleep(WAVE_TIMER_SLEEP);
-		}catch(Exception e){e.printStackTrace();}
-		finally{
-			justWaved=false;
-		}
-	};
-	private boolean wave(final ChatEvent event){
-		String content = event.getContent().trim();
-		switch(content){
-			case waveRight:
-				ChatBot.putMessage(event, waveLeft);
-				break;
-			case waveLeft:
-				ChatBot.putMessage(event, waveRight);
-				break;
-			default:
-				if(content.matches(regex_wave_emoji)){
-					ChatBot.putMessage(event, wave_emoji_plain);
-					break;
-				}
-				return false;
-		}
-		justWaved=true;
-		new Thread(waveTimer, "WaveTimer").start();
+	/**Waves back, unless the bot waved recently.*/
+	private boolean wave(final ChatEvent event, MessageClassifier.Wave wave){
+		if(!justWaved.compareAndSet(false, true))
+			return false;
+		ChatBot.putMessage(event, wave.getAnswer());
+		DeadlineScheduler.getShared().schedule(WAVE_TIMER_SLEEP, ()->{
+			justWaved.set(false);
+		});
 		return true;
 	}
 	public EventHandler(){
@@ -82,10 +74,15 @@ public abstract class EventHandler
 		this.trigger=trigger;
 	}
 	public abstract void handle(final ChatEvent event);
-	private static volatile int threadNumber = 1;
-	private static final java.util.function.Supplier<String> myPingable=()->{ 
-		return "@"+ChatBot.getMyUserName().replaceAll("\\s","");
-	};
+	/**The classifier for the current trigger and user name.*/
+	private MessageClassifier getClassifier()
+	{
+		String name = ChatBot.getMyUserName();
+		MessageClassifier c = classifier;
+		if(c==null || !c.isFor(trigger, name))
+			classifier = c = new MessageClassifier(trigger, name);
+		return c;
+	}
 	/**
 	 * Runs a command associated with the chat event, if any.
 	 * @param event The chat event
@@ -102,9 +99,9 @@ public abstract class EventHandler
 					") \""+event.getEscapedContent()+'\"');
 		if(event.getContent()==null)
 			return false;
-		if(!justWaved && wave(event))
+		MessageClassifier.Classification message = getClassifier().classify(event.getContent(), event.getEventType());
+		if(message.wave!=null && wave(event, message.wave))
 			return true;
-		String content = getSterilizedContent(event);
 		switch(event.getEventType()){
 			case MessageReply:
 				break;
@@ -112,7 +109,7 @@ public abstract class EventHandler
 				break;
 			case MessagePosted:
 			case MessageEdited:
-				if(!content.startsWith(trigger))
+				if(!message.triggered)
 					return false;
 				else
 					break;
@@ -120,16 +117,12 @@ public abstract class EventHandler
 				throw new UnsupportedOperationException(event.getEventType().name());
 		}
 		
-		String[] arr = (content.startsWith(trigger) ? content.substring(trigger.length()) : content).split(" ",2);
-		
-		final String command=arr[0].trim().toLowerCase();
-		String extra = arr.length>1?arr[1]:"";
-		final Command c;
-		if(builtincommands.containsKey(command))
-			c = builtincommands.get(command);
-		else if(commands.containsKey(command))
-			c = commands.get(command);
-		else{
+		final String command = message.command;
+		Command found = builtincommands.get(command);
+		if(found==null)
+			found = commands.get(command);
+		final Command c = found;
+		if(c==null){
 			switch(event.getEventType())
 			{
 				case UserMentioned:
@@ -146,76 +139,69 @@ public abstract class EventHandler
 			return false;
 		}
 		
-		final String args = extra;
-		Timer countdown = new Timer();
-		//Start a new Thread to run the command
-		Thread thread = new Thread(new Runnable()
-		{
-			public void run()
-			{
-				c.run(event, args);
-				countdown.cancel();
-			}
-		}, "Command-"+command+"-"+(threadNumber++));
+		final String args = message.getArgs();
 		final String cmd = command;
-		countdown.schedule(new TimerTask(){
-			public void run(){
+		boolean accepted = commanddispatcher.dispatch(()->{
+			Deadline deadline = DeadlineScheduler.getShared().schedule(MAX_COMMAND_TIME, ()->{
 				if(DEBUG)
 					return;
-				System.out.println("Command timed out.");
-				try
-				{
-					Utils.forceKillThread(thread);
-				}
-				catch(IllegalArgumentException | InterruptedException e)
-				{
-					System.err.println("Failed to stop thread for command \""+cmd+
-							"\" with arguments \""+args+"\"");
-					e.printStackTrace();
-				}
+				System.out.println("Command \""+cmd+"\" timed out.");
+				commandtimeouts.merge(cmd, 1L, Long::sum);
+			});
+			//In debug mode the command may take as long as it likes
+			if(!DEBUG)
+				deadline.attach();
+			try{
+				c.run(event, args);
 			}
-		}, MAX_COMMAND_TIME);
-		thread.start();
+			catch(CancellationException e){
+				System.out.println("Command \""+cmd+"\" with arguments \""+args+"\" was stopped: "+e.getMessage());
+			}
+			catch(RuntimeException e){
+				//Keep the worker, which may be a pooled virtual thread, alive
+				System.err.println("Command \""+cmd+"\" with arguments \""+args+"\" failed");
+				e.printStackTrace();
+			}
+			finally{
+				deadline.cancel();
+				deadline.detach();
+			}
+		});
+		if(!accepted)
+			System.out.println("Command queue is full, dropped command: "+command);
 		return true;
 	}
-	private static Pattern regex_message_reply = Pattern.compile("^:\\d+ "),
-			regex_mention = Pattern.compile("@((?:[^\\s!?();:,\\/+&<]){"
-					+ MIN_MENTION_LENGTH + "3,})");
-	
-	private String getSterilizedContent(ChatEvent event)
-	{
-		String content = event.getContent().trim();
-		String myName = myPingable.get();
-		//TODO Remove instances of (text that could ping myName) from (content)
-		Matcher m = regex_message_reply.matcher(content);
-		switch(event.getEventType()){
-			case MessageEdited:
-				break;
-			case MessageMovedIn:
-				break;
-			case MessageMovedOut:
-				break;
-			case MessagePosted:
-				break;
-			case MessageReply:
-				content = m.replaceFirst("");
-				break;
-			case UserMentioned:
-				break;
-			default:
-				break;
-		}
-		// TODO Auto-generated method stub
-		return content;
-	}
 	public final void setTrigger(String trigger)
 	{
 		this.trigger=trigger;
 	}
+	/**
+	 * Sets the dispatcher that runs commands.
+	 */
+	public final void setCommandDispatcher(Dispatcher dispatcher)
+	{
+		Dispatcher old = commanddispatcher;
+		commanddispatcher = dispatcher;
+		old.shutdown();
+	}
+	public final Dispatcher getCommandDispatcher()
+	{
+		return commanddispatcher;
+	}
+	/**
+	 * The number of times each command ran out of time, by command name.
+	 * @see DeadlineScheduler#getExpiredCount()
+	 */
+	public final Map<String, Long> getCommandTimeouts()
+	{
+		return new TreeMap<>(commandtimeouts);
+	}
 	private Command putCommand(String name, String text){
 		name=name.trim().toLowerCase();
+		final String source = '\"'+text;
+		commandsources.put(name, source);
 		return commands.put(name, (ChatEvent _event, String _args)->{
-			ChatBot.putMessage(_event, MicroAssembler.assemble('\"'+text, _args));
+			ChatBot.putMessage(_event, MicroAssembler.assemble(source, _args));
 		});
 	}
 	/**
@@ -247,6 +233,7 @@ public abstract class EventHandler
 			boolean canRemove = commands.containsKey(name);
 			if(canRemove){
 				commands.remove(name);
+				MicroAssembler.forget(commandsources.remove(name));
 				removeCommandFile(name);
 			}
 			return canRemove;
@@ -323,7 +310,7 @@ public abstract class EventHandler
 			ChatBot.putMessage(event, message);
 		};
 		Command assembly = (ChatEvent event, String args)->{
-			String message = MicroAssembler.assemble(args);//TODO
+			String message = MicroAssembler.assembleOnce(args);//TODO
 			if(message.isEmpty())
 				message = ErrorMessages.getErrorText(event, ErrorType.BADINPUT);
 			ChatBot.replyToMessage(event, message);
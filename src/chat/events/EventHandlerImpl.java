@@ -1,52 +1,34 @@
 package chat.events;
 
-import java.util.Vector;
 import chat.ChatSite;
 import chat.bot.ChatBot;
+import chat.rooms.RoomRegistry;
+import utils.ExpiringLongSet;
 import utils.Utils;
-import utils.WebRequest;
 
 public class EventHandlerImpl extends EventHandler
 {
-	static private class EventIdTimePairList extends Vector<EventIdTimePair>{
-		public EventIdTimePairList(int initialCapacity, int capacityIncrement){
-			super(initialCapacity, capacityIncrement);
-		}
-		
-		boolean contains(ChatEvent event){
-			return this.stream().anyMatch((pair)->{
-				return event.getId() == pair.getEventId();
-			});
-		}
-		
-		public void add(ChatEvent event){
-			add(new EventIdTimePair(event.getId(), event.getTimeStamp()));
-		}
-	}
-	private static final int recenteventsinitialcapacity = 30;
-	private static final int recenteventsinitialcapacityincrement = 10;
 	/**
-	 * The list of events that have already been handled. 
+	 * Maximum age to keep messages in the {@link #recentevents} set, in milliseconds. 
+	 * 5 * second * minute
 	 */
-	private static EventIdTimePairList recentevents = new EventIdTimePairList(recenteventsinitialcapacity, recenteventsinitialcapacityincrement);
+	private static final long maxEventAgeMillis = 5 * 1000 * 60;
 	/**
-	 * Maximum age to keep messages in the {@link #recentevents} list, in milliseconds. 
-	 * 5 * second * minute
+	 * The time span covered by one bucket of {@link #recentevents}, in milliseconds.
 	 */
-	private static long maxEventAgeMillis = 5 * 1000 * 60;
-	private static synchronized boolean previouslyHandled(final ChatEvent event)
+	private static final long recenteventsBucketMillis = 1000 * 60;
+	private static final int recenteventsStripes = 16;
+	/**
+	 * The ids of the events that have already been handled. 
+	 */
+	private static final ExpiringLongSet recentevents = new ExpiringLongSet(
+			maxEventAgeMillis, recenteventsBucketMillis, recenteventsStripes);
+	private static boolean previouslyHandled(final ChatEvent event)
 	{
 		//Check if this event was already handled
-		if(recentevents.contains(event))
-			return true;
-		
-		recentevents.removeIf((eventIdTimePair)->{
-			return (Utils.getUnixTimeMillis() - eventIdTimePair.getTimestamp()) > maxEventAgeMillis;
-		});
-		recentevents.add(event);
-		return false;
+		return !recentevents.add(event.getId(), Utils.getUnixTimeMillis());
 	}
-	public synchronized void handle(final ChatEvent event)
+	public void handle(final ChatEvent event)
 	{
 		if(previouslyHandled(event))
 			return;
@@ -69,6 +51,7 @@ public class EventHandlerImpl extends EventHandler
 					ChatBot.putMessage(event, "User "+event.getUserName()+" left the room.");
 				break;
 			case RoomNameChanged://5
+				RoomRegistry.invalidate(event.getChatSite(), event.getRoomId());
 				break;
 			case MessageStarred://6
 				break;
@@ -103,7 +86,7 @@ public class EventHandlerImpl extends EventHandler
 			case UserNotification://16
 				System.out.println("Handling event "+event.toString());
 				try{
-					WebRequest.GET("https://stackoverflow.com/topbar/inbox?_="+Utils.getUnixTimeMillis());
+					ChatBot.getChatIO(event.getChatSite()).getTransport().GET("https://stackoverflow.com/topbar/inbox?_="+Utils.getUnixTimeMillis());
 				}catch(Exception e){
 					e.printStackTrace();
 				}
@@ -139,21 +122,3 @@ public class EventHandlerImpl extends EventHandler
 		}
 	}
 }
-class EventIdTimePair{
-	private final long eventid, timestamp;
-	public EventIdTimePair(long eventid, long timestamp){
-		this.eventid=eventid;
-		this.timestamp=timestamp;
-	}
-	public long getEventId(){
-		return eventid;
-	}
-	public long getTimestamp(){
-		return timestamp;
-	}
-	@Override
-	public boolean equals(Object obj){
-			return obj.getClass().equals(this.getClass())
-					&& (this.getEventId() == ((EventIdTimePair)obj).getEventId());
-	}
-}
@@ -0,0 +1,182 @@
+package chat.events;
+
+import java.util.Objects;
+
+/**
+ * Works out what a chat message asks of the bot in a single scan of its
+ * content: whether it is a wave, and otherwise which command it runs.<br>
+ * The scan skips, in this order, the <code>:id</code> prefix of a reply,
+ * a mention of the bot and the trigger, and then takes the command name up to
+ * the first space. Only the command name is copied out of the content; the
+ * rest of the result is offsets into it.
+ */
+final class MessageClassifier
+{
+	/**A wave, and the wave to answer it with.*/
+	static enum Wave{
+		RIGHT("o/", "\\o"),
+		LEFT("\\o", "o/"),
+		EMOJI(waveEmoji, waveEmoji),
+		;
+		private final String token;
+		private final String answer;
+		Wave(String token, String answer){
+			this.token=token;
+			this.answer=answer;
+		}
+		public String getAnswer(){return answer;}
+	}
+	/**The result of classifying a message.*/
+	static final class Classification
+	{
+		/**The content, untrimmed.*/
+		final String content;
+		/**The wave, if the whole message is one, or null.*/
+		final Wave wave;
+		/**The message replied to, or -1.*/
+		final long replyTo;
+		/**Whether the message starts by mentioning the bot.*/
+		final boolean mentioned;
+		/**Whether the command follows the trigger.*/
+		final boolean triggered;
+		/**The command name in lower case, possibly empty.*/
+		final String command;
+		/**The arguments are <code>content.substring(argsStart, argsEnd)</code>.*/
+		final int argsStart, argsEnd;
+
+		private Classification(String content, Wave wave, long replyTo, boolean mentioned,
+				boolean triggered, String command, int argsStart, int argsEnd)
+		{
+			this.content=content;
+			this.wave=wave;
+			this.replyTo=replyTo;
+			this.mentioned=mentioned;
+			this.triggered=triggered;
+			this.command=command;
+			this.argsStart=argsStart;
+			this.argsEnd=argsEnd;
+		}
+		/**The arguments of the command, or an empty string.*/
+		String getArgs()
+		{
+			return content.substring(argsStart, argsEnd);
+		}
+	}
+	private static final String waveEmoji = "\uD83D\uDC4B";
+	/**The fewest characters of the bot's name that ping it.*/
+	private static final int minMentionLength = 3;
+
+	private final String trigger;
+	private final String name;
+	/**The name without whitespace, as it is written in a mention.*/
+	private final String pingable;
+
+	/**
+	 * @param trigger The prefix of commands in messages that are not addressed to the bot, or null
+	 * @param name The bot's user name, or null
+	 */
+	MessageClassifier(String trigger, String name)
+	{
+		this.trigger=trigger;
+		this.name=name;
+		StringBuilder sb = new StringBuilder();
+		if(name!=null)
+			for(int i=0;i<name.length();++i)
+				if(!Character.isWhitespace(name.charAt(i)))
+					sb.append(name.charAt(i));
+		this.pingable=sb.toString();
+	}
+	/**Whether this classifier was made for the trigger and name.*/
+	boolean isFor(String trigger, String name)
+	{
+		return Objects.equals(trigger, this.trigger) && Objects.equals(name, this.name);
+	}
+	/**
+	 * Classifies the content of a message.
+	 * @param type The type of the event, which decides whether a reply prefix
+	 * or mention is skipped
+	 */
+	Classification classify(String content, EventType type)
+	{
+		int start = 0, end = content.length();
+		//The bounds of String.trim()
+		while(start<end && content.charAt(start)<=' ')
+			++start;
+		while(end>start && content.charAt(end-1)<=' ')
+			--end;
+		Wave wave = wave(content, start, end);
+		int i = start;
+		long replyTo = -1;
+		boolean mentioned = false;
+		if(type==EventType.MessageReply){
+			int digits = i+1;
+			long id = 0;
+			while(digits<end && '0'<=content.charAt(digits) && content.charAt(digits)<='9')
+				id = id*10+(content.charAt(digits++)-'0');
+			if(i<end && content.charAt(i)==':' && digits>i+1 && digits<end && content.charAt(digits)==' '){
+				replyTo = id;
+				i = digits+1;
+			}
+		}
+		if(type==EventType.MessageReply || type==EventType.UserMentioned){
+			int after = mention(content, i, end);
+			if(after>i){
+				mentioned = true;
+				i = after;
+			}
+		}
+		boolean triggered = trigger!=null && content.startsWith(trigger, i);
+		if(triggered)
+			i += trigger.length();
+		//The command runs up to the first space, the arguments from after it
+		int space = i;
+		while(space<end && content.charAt(space)!=' ')
+			++space;
+		int commandStart = i, commandEnd = space;
+		while(commandStart<commandEnd && content.charAt(commandStart)<=' ')
+			++commandStart;
+		while(commandEnd>commandStart && content.charAt(commandEnd-1)<=' ')
+			--commandEnd;
+		String command = content.substring(commandStart, commandEnd).toLowerCase();
+		int argsStart = Math.min(space+1, end);
+		return new Classification(content, wave, replyTo, mentioned, triggered, command, argsStart, end);
+	}
+	private static Wave wave(String content, int start, int end)
+	{
+		int length = end-start;
+		for(Wave wave : Wave.values())
+			if(length==wave.token.length() && content.startsWith(wave.token, start))
+				return wave;
+		//The wave emoji with a skin tone: U+1F3FB to U+1F3FF
+		if(length==waveEmoji.length()+2 && content.startsWith(waveEmoji, start)
+				&& content.charAt(start+2)=='\uD83C'
+				&& '\uDFFB'<=content.charAt(start+3) && content.charAt(start+3)<='\uDFFF')
+			return Wave.EMOJI;
+		return null;
+	}
+	/**
+	 * Matches a mention of the bot at <code>i</code>: an <code>@</code> followed
+	 * by the start of the bot's name, at least {@link #minMentionLength}
+	 * characters of it, that is not followed by more letters or digits.
+	 * @return The index after the mention and the punctuation and spaces that
+	 * follow it, or <code>i</code> if there is none.
+	 */
+	private int mention(String content, int i, int end)
+	{
+		if(i>=end || content.charAt(i)!='@' || pingable.isEmpty())
+			return i;
+		int n = 0;
+		while(n<pingable.length() && i+1+n<end
+				&& Character.toLowerCase(content.charAt(i+1+n))==Character.toLowerCase(pingable.charAt(n)))
+			++n;
+		int after = i+1+n;
+		if(n<Math.min(minMentionLength, pingable.length())
+				|| (after<end && Character.isLetterOrDigit(content.charAt(after))))
+			return i;
+		while(after<end && (content.charAt(after)==',' || content.charAt(after)==':'))
+			++after;
+		while(after<end && content.charAt(after)<=' ')
+			++after;
+		return after;
+	}
+}
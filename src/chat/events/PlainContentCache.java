@@ -0,0 +1,72 @@
+package chat.events;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import chat.ChatSite;
+import chat.io.ChatTransport;
+
+/**
+ * Caches the plain text of chat messages.<br>
+ * Entries are keyed by site, message id and edit count, so an edited message
+ * is fetched again. Messages are fetched with the site's login cookies, so
+ * those of private rooms can be read too. Threads asking for a message that
+ * is already being fetched wait for that request instead of starting their own.
+ */
+final class PlainContentCache
+{
+	private PlainContentCache(){}
+
+	private static final int maxEntries = 1024;
+	private static final Map<String, CompletableFuture<String>> cache =
+			new LinkedHashMap<String, CompletableFuture<String>>(){
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<String>> eldest){
+			return size()>maxEntries;
+		}
+	};
+
+	/**
+	 * Gets the plain text of a message, fetching it if it is not cached.
+	 * @throws IOException if the message could not be fetched.
+	 */
+	static String get(ChatSite site, long roomid, long messageid, long edits) throws IOException
+	{
+		String key = site.name()+'/'+messageid+'/'+edits;
+		CompletableFuture<String> future, created = null;
+		synchronized(cache){
+			future = cache.get(key);
+			if(future==null){
+				future = created = new CompletableFuture<>();
+				cache.put(key, future);
+			}
+		}
+		if(created!=null){
+			try{
+				created.complete(ChatTransport.forSite(site).GET("https://"+site.getUrl()+"/messages/"+roomid+'/'+messageid+"?plain=true"));
+			}
+			catch(IOException | RuntimeException e){
+				synchronized(cache){
+					cache.remove(key, created);
+				}
+				created.completeExceptionally(e);
+			}
+		}
+		try{
+			return future.get();
+		}
+		catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			throw new IOException("Failed to get message "+messageid+" from "+site, cause);
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while getting message "+messageid);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package chat.io;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the acknowledgements of a {@link ChatIO} and sends them in batches.<br>
+ * The first acknowledgement starts a short window; everything acknowledged
+ * until it ends is sent in one request, with the ids separated by commas. A
+ * message acknowledged twice is only sent once. Should the server reject a
+ * batch with a client error, every id in it is sent on its own and batching is
+ * turned off. Other failures, such as timeouts, are retried a few times with
+ * the batch as a whole.
+ */
+public class AckBatcher
+{
+	/**How long acknowledgements are collected before they are sent, in milliseconds.*/
+	private static final long windowMillis = 250;
+	private static final int maxBatchSize = 50;
+	private static final int maxAttempts = 3;
+	private static final long retryDelayMillis = 1000;
+
+	private final ChatIO chat;
+	private final Executor delayed = CompletableFuture.delayedExecutor(windowMillis, TimeUnit.MILLISECONDS);
+	private final Executor retryDelayed = CompletableFuture.delayedExecutor(retryDelayMillis, TimeUnit.MILLISECONDS);
+	/**The ids waiting to be sent, and the future of each.*/
+	private Map<Long, CompletableFuture<Void>> pending = new LinkedHashMap<>();
+	private volatile boolean batching = true;
+	private final AtomicLong acknowledged = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+
+	AckBatcher(ChatIO chat)
+	{
+		this.chat=chat;
+	}
+	/**
+	 * Acknowledges a message with the next batch.
+	 * @return A future that completes once the batch is sent.
+	 */
+	public CompletableFuture<Void> add(long messageid)
+	{
+		CompletableFuture<Void> future;
+		boolean first, full;
+		synchronized(this){
+			future = pending.get(messageid);
+			if(future!=null)
+				return future;
+			first = pending.isEmpty();
+			future = new CompletableFuture<>();
+			pending.put(messageid, future);
+			full = pending.size()>=maxBatchSize || !batching;
+		}
+		if(full)
+			flush();
+		else if(first)
+			delayed.execute(this::flush);
+		return future;
+	}
+	/**Sends everything collected so far.*/
+	public void flush()
+	{
+		Map<Long, CompletableFuture<Void>> batch;
+		synchronized(this){
+			if(pending.isEmpty())
+				return;
+			batch = pending;
+			pending = new LinkedHashMap<>();
+		}
+		if(batching || batch.size()==1)
+			send(batch, 1);
+		else
+			for(Map.Entry<Long, CompletableFuture<Void>> entry : batch.entrySet())
+				send(Map.of(entry.getKey(), entry.getValue()), 1);
+	}
+	/**Whether the server refused the request itself, as opposed to failing to handle it.*/
+	private static boolean isRejected(Throwable e)
+	{
+		if(e instanceof CompletionException && e.getCause()!=null)
+			e = e.getCause();
+		if(!(e instanceof ChatTransport.HttpStatusException))
+			return false;
+		int status = ((ChatTransport.HttpStatusException)e).getStatus();
+		return status>=400 && status<500;
+	}
+	private void send(Map<Long, CompletableFuture<Void>> batch, int attempt)
+	{
+		List<String> ids = new ArrayList<>(batch.size());
+		for(Long id : batch.keySet())
+			ids.add(Long.toString(id));
+		requests.incrementAndGet();
+		chat.acknowledgeAsync(String.join(",", ids)).whenComplete((result, e)->{
+			if(e==null){
+				acknowledged.addAndGet(batch.size());
+				for(CompletableFuture<Void> future : batch.values())
+					future.complete(null);
+			}
+			else if(batch.size()>1 && isRejected(e)){
+				System.out.println("Batched acknowledgement rejected by "+chat.getChatSite()+", sending them one by one");
+				batching = false;
+				for(Map.Entry<Long, CompletableFuture<Void>> entry : batch.entrySet())
+					send(Map.of(entry.getKey(), entry.getValue()), 1);
+			}
+			else if(attempt<maxAttempts && !isRejected(e))
+				retryDelayed.execute(()->send(batch, attempt+1));
+			else
+				for(CompletableFuture<Void> future : batch.values())
+					future.completeExceptionally(e);
+		});
+	}
+	/**
+	 * The number of messages acknowledged.
+	 */
+	public long getAcknowledgedCount()
+	{
+		return acknowledged.get();
+	}
+	/**
+	 * The number of acknowledgement requests sent.
+	 */
+	public long getRequestCount()
+	{
+		return requests.get();
+	}
+}
@@ -1,27 +1,34 @@
 package chat.io;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.security.sasl.AuthenticationException;
 import chat.ChatSite;
+import chat.events.ChatEventDecoder;
 import chat.events.ChatEventList;
+import chat.rooms.RoomRegistry;
 import chat.users.ChatUser;
 import chat.users.ChatUserList;
+import chat.users.UserCache;
+import utils.PhaseTimer;
 import utils.Utils;
-import utils.WebRequest;
-import utils.js.JavaScriptArray;
+import static utils.Utils.getNumValueJSON;
 import static utils.Utils.search;
 import static utils.Utils.urlencode;
-import static utils.WebRequest.GET;
-import static utils.WebRequest.POST;
 
 public class ChatIO
 {
@@ -36,51 +43,58 @@ public class ChatIO
 	private boolean logged_in;
 	private SortedSet<Long> rooms = Collections.synchronizedSortedSet(new TreeSet<Long>());
 	private boolean firstTime = true;
-	private static Object lock_logged_in = new Object();
-	private static Object lock_roomcacheupdate = new Object();
+	/**
+	 * Guards {@link #logged_in}. Sites log in independently, except that the
+	 * Stack Exchange sites share one login, see {@link ChatTransport#loginToNetwork}.
+	 */
+	private final Object lock_logged_in = new Object();
+	private final PhaseTimer startup = new PhaseTimer();
+	private final Object lock_roomcacheupdate = new Object();
+	private final Object lock_poll = new Object();
 	private SortedSet<Long> initialRooms;
-	static{
-		String[][] headers = {
-				{"Accept", "*/*"},
-				{"Accept-Encoding", "gzip, deflate"},
-				{"Accept-Language", "en-US,en;q=0.5"},
-				{"DNT", "1"},
-				{"Cache-Control", "no-cache"},
-				//{"Connection", "keep-alive"},
-				{"Content-Type", "application/x-www-form-urlencoded"},
-				{"Upgrade-Insecure-Requests", "1"},
-				{"User-Agent", "Mozilla/5.0 (X11; Linux i686; rv:17.0) Gecko/20100101 Firefox/17.0"},
-		};
-		WebRequest.setDefaultHeaders(headers);
-	}
+	private final ChatEventDecoder decoder;
+	private final OutboundQueue outbound = new OutboundQueue(this);
+	private final AckBatcher acks = new AckBatcher(this);
+	private final CircuitBreaker breaker;
+	private final ChatTransport transport;
 	public ChatIO(final ChatSite chatsite, final String email, final String password, Long... longs) throws AuthenticationException, IllegalStateException
 	{
 		this(chatsite, email, password, true, longs);
 	}
 	public ChatIO(final ChatSite chatsite, final String email, final String password, boolean doChecks, Long... longs) throws AuthenticationException, IllegalStateException
 	{
+		transport = ChatTransport.forSite(chatsite);
+		breaker = new CircuitBreaker(chatsite.name());
+		transport.warmUp();
 		login(chatsite, email, password);
 		if(!isLoggedIn())
 			throw new IllegalStateException("Not logged in to "+chatsite);
+		startup.mark("login");
 		CHATSITE = chatsite;
+		decoder = new ChatEventDecoder(chatsite);
 		String url = protocol+"://"+CHATSITE.getUrl()+"/rooms";
+		//The same page has the fkey and the user id
+		String response_text;
 		try
 		{
-			String response_text = GET(url);
+			response_text = transport.GET(url);
 			fkey = search(fkeyHtmlRegex, response_text);
 			this.fkey = fkey;
 		}
 		catch(Exception e){
 			throw new AuthenticationException("Failed to get fkey from "+url, e);
 		}
+		startup.mark("rooms page");
 		if(doChecks){
 			try{
-				long myUserId=Long.parseLong(search(useridHtmlRegex, GET(url)));
+				long myUserId=Long.parseLong(search(useridHtmlRegex, response_text));
 				System.out.println(CHATSITE.name()+" user id: "+myUserId);
 				me = new ChatUser(myUserId, CHATSITE);
+				UserCache.put(me);
 			}catch(Exception e){
 				new AuthenticationException("Failed to get myUserId from "+url, e).printStackTrace();
 			}
+			startup.mark("user");
 			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
 				public void run()
 				{
@@ -95,6 +109,8 @@ public class ChatIO
 		}
 		this.initialRooms = new TreeSet<Long>(Arrays.asList(longs));
 		joinRoom(longs);
+		startup.mark("join");
+		System.out.println(CHATSITE.name()+" startup: "+startup);
 	}
 	private static volatile boolean loggedin = false;
 	private synchronized void login(final ChatSite site, final String email, final String password) throws AuthenticationException
@@ -108,7 +124,7 @@ public class ChatIO
 							String fkey;
 							switch(site){
 								case STACKOVERFLOW:
-									response_text = GET("https://stackoverflow.com/users/login");
+									response_text = transport.GET("https://stackoverflow.com/users/login");
 									fkey = search(fkeyHtmlRegex, response_text);
 									String post_data = urlencode(new String[][]{
 										{"email", email},
@@ -120,25 +136,17 @@ public class ChatIO
 										{"password", password},
 										{"ssrc", "head"},
 									});
-									response_text = POST("https://stackoverflow.com/users/login", post_data);
-									GET("https://"+site.getUrl());
+									response_text = transport.POST("https://stackoverflow.com/users/login", post_data);
+									transport.GET("https://"+site.getUrl());
 									break loop;
 								case STACKEXCHANGE:
-									response_text = GET("https://stackexchange.com/users/login");
-									//response_text = GET(response_text);
-									fkey = search(fkeyHtmlRegex,response_text);
-									response_text = POST("https://meta.stackexchange.com/users/login?returnurl=https%3a%2f%2fstackexchange.com%2fusers%2flogin-or-signup%2fdelegated%3freturnurl%3dhttp%253a%252f%252fchat.stackexchange.com", urlencode(new String[][]{
-										{"cdl","1"},
-										{"email", email},
-										{"password", password},
-										{"fkey", fkey},
-										{"oauth_server", ""},
-										{"oauth_version", ""},
-										{"ssrc", "login"},
-									}));
-									//GET(search("var target = \'([^\']+)", response_text));
+									transport.loginToNetwork(()->loginStackExchange(email, password));
 									break loop;
-								case METASTACKEXCHANGE:/*
+								case METASTACKEXCHANGE:
+									//Uses the cookies of the Stack Exchange login, which shares its cookie jar;
+									//waits for it if the Stack Exchange site is logging in at the same time
+									transport.loginToNetwork(()->loginStackExchange(email, password));
+									/*
 							response_text = POST("https://stackexchange.com/users/signin", urlencode(new String[][]{
 								{"from", "https://meta.stackexchange.com/users/login#log-in"},
 								{"_", Long.toString(getUnixTimeMillis())}
@@ -152,14 +160,14 @@ public class ChatIO
 								{"fkey", fkey},
 							}));
 							GET(search("var target = \'([^\']+)", response_text));*/
-									GET("https://"+site.getUrl());
+									transport.GET("https://"+site.getUrl());
 									break loop;
 								default:
 									throw new UnsupportedOperationException("Site \""+site.name()+"\" does not have login handling.");
 							}
 						}
 					}
-					catch(java.net.SocketTimeoutException e){
+					catch(java.net.SocketTimeoutException | java.net.http.HttpTimeoutException e){
 						try
 						{
 							Thread.sleep(5000);
@@ -177,6 +185,26 @@ public class ChatIO
 		System.out.println("Successfully logged in to "+site.getUrl());// Success
 		logged_in=true;
 	}
+	/**
+	 * Logs in to the Stack Exchange network, which chat.stackexchange.com and
+	 * chat.meta.stackexchange.com share.
+	 */
+	private void loginStackExchange(final String email, final String password) throws IOException
+	{
+		String response_text = transport.GET("https://stackexchange.com/users/login");
+		//response_text = GET(response_text);
+		String fkey = search(fkeyHtmlRegex,response_text);
+		response_text = transport.POST("https://meta.stackexchange.com/users/login?returnurl=https%3a%2f%2fstackexchange.com%2fusers%2flogin-or-signup%2fdelegated%3freturnurl%3dhttp%253a%252f%252fchat.stackexchange.com", urlencode(new String[][]{
+			{"cdl","1"},
+			{"email", email},
+			{"password", password},
+			{"fkey", fkey},
+			{"oauth_server", ""},
+			{"oauth_version", ""},
+			{"ssrc", "login"},
+		}));
+		//GET(search("var target = \'([^\']+)", response_text));
+	}
 	private synchronized void logout() throws AuthenticationException
 	{
 		try
@@ -184,11 +212,11 @@ public class ChatIO
 			synchronized(lock_logged_in){
 				if(!logged_in)
 					throw new IllegalStateException("Not logged in.");
-				GET(protocol + "://" + CHATSITE.getUrl() + "/chats/leave/all");
+				transport.GET(protocol + "://" + CHATSITE.getUrl() + "/chats/leave/all");
 				
-				String response_text = GET("https://stackoverflow.com/users/logout");
+				String response_text = transport.GET("https://stackoverflow.com/users/logout");
 				String fkey = search(fkeyHtmlRegex, response_text);
-				POST(protocol+"://"+CHATSITE.getUrl()+"/users/logout", urlencode(new String[][]{
+				transport.POST(protocol+"://"+CHATSITE.getUrl()+"/users/logout", urlencode(new String[][]{
 					{"fkey", fkey},
 					{"returnUrl", protocol+"://"+CHATSITE.getUrl()+"/"}
 				}));
@@ -201,61 +229,54 @@ public class ChatIO
 		}
 	}
 	private String cacheChatEventGetterString;
-	private String t="0";
+	private volatile String t="0";
+	private volatile ChatWebSocket eventsocket;
 	/**
 	 * Gets the events to be handled from this ChatIO's main chat server.
 	 * @return a list containing all unread events for this ChatIO.
 	 */
 	public ChatEventList getChatEvents()
 	{
-		synchronized(lock_roomcacheupdate)
+		synchronized(lock_poll)
 		{
-			String getStr = cacheChatEventGetterString.replace(replStrUrlEnc, t);
+			if(!breaker.tryAcquire())
+				//The site keeps failing, leave it alone for a while
+				return new ChatEventList();
+			String getStr;
+			synchronized(lock_roomcacheupdate)
+			{
+				getStr = cacheChatEventGetterString.replace(replStrUrlEnc, t);
+			}
 			try
 			{
-				String response = POST(protocol+"://"+CHATSITE.getUrl()+"/events", getStr);
-				try
-				{
-					t = search("\"t\"\\:(\\d+)", response, false);
-				}
-				catch(IllegalArgumentException iae)
-				{
-					if(t==null)
-						t = "0";
-				}
-				LinkedList<String> eventlists = new LinkedList<String>();
-				try
-				{
-					String jsf = "var a=" + response + ";var list=[];for(var i in a){"
-							+ " var b=a[i].e;"
-							+ " if(b)"
-							+ "  for(var j in b)"
-							+ "   list.push(JSON.stringify(b[j]))"
-							+ "}"
-							+ "return list;";
-					String[] result = JavaScriptArray.fromResult(jsf).to(String[].class);
-					
-					for(String event : result)
-					{
-						if(!eventlists.contains(event))
-							eventlists.add(event);
-					}
-				}
-				catch(Exception e)
-				{
-					//No events
-				}
+				String response = transport.POST(protocol+"://"+CHATSITE.getUrl()+"/events", getStr);
+				breaker.onSuccess();
 				if(firstTime)
 				{
 					firstTime = false;
+					try
+					{
+						long cursor = decoder.decode(response, null);
+						if(cursor>=0)
+							t = Long.toString(cursor);
+					}
+					catch(IllegalArgumentException iae)
+					{
+						//Keep the previous cursor
+					}
 					System.out.println("Joined "+CHATSITE.name());
 					return new ChatEventList();
 				}
-				return new ChatEventList(eventlists, CHATSITE);
+				return decodeEvents(response);
 			}
 			catch(Exception e)
 			{
-				String errMsg = e.getMessage();
+				if(CircuitBreaker.isSiteFailure(e))
+					breaker.onFailure();
+				else
+					//The site answered, so it is up
+					breaker.onSuccess();
+				String errMsg = String.valueOf(e.getMessage());
 				Matcher m = Pattern.compile("HTTP response code.*?(\\d+)").matcher(errMsg);
 				if(m.find()){
 					int httpcode;
@@ -273,81 +294,257 @@ public class ChatIO
 					}
 					return new ChatEventList();
 				}
-				//System.err.println("Failed to get messages for "+CHATSITE);
-				//e.printStackTrace();
+				System.err.println("Failed to get messages for "+CHATSITE+": "+e);
 				return new ChatEventList();
 			}
 		}
 	}
-	private static final String needMoreRepRegex = "id\\s*=\\s*\"bubble\"\\s*>\\s*You must have";
-	public void putMessage(final long roomid, final String message)
+	/**
+	 * Decodes a response in the format of the <code>/events</code> endpoint
+	 * and advances the cursor.
+	 * @return the events, without duplicates and sorted by time.
+	 */
+	ChatEventList decodeEvents(String response)
 	{
-		if(message.trim().isEmpty()) return;
+		ChatEventList.Builder builder = new ChatEventList.Builder();
 		try
 		{
-			if(!Utils.containsRegex(needMoreRepRegex, GET(protocol+"://"+CHATSITE.getUrl()+"/rooms/"+roomid)))
-				POST(protocol+"://"+CHATSITE.getUrl()+"/chats/"+roomid+"/messages/new", urlencode(new String[][]{
-					{"fkey", fkey},
-					{"text", message}
-				}));
-			else
-				System.out.println("Notice: Not enough reputation to send message to room "+roomid+" on site "+CHATSITE);
+			long cursor = decoder.decode(response, builder);
+			if(cursor>=0)
+				t = Long.toString(cursor);
 		}
-		catch(Exception e)
+		catch(IllegalArgumentException iae)
 		{
-			throw new IllegalArgumentException("Failed to send message to room id "+roomid, e);
+			//No events
 		}
+		return builder.build();
 	}
-	public void editMessage(final long messageid, final String message)
+	/**
+	 * Starts receiving this site's events over a WebSocket instead of polling.<br>
+	 * The rooms are registered with one <code>/events</code> request first;
+	 * any events it returns are passed to the listener as well.
+	 * @param listener Receives every non-empty list of events
+	 * @return The socket, which reconnects by itself until it is closed.
+	 * @throws IOException if the socket could not be opened.
+	 */
+	public ChatWebSocket openEventSocket(Consumer<ChatEventList> listener) throws IOException
 	{
+		ChatEventList initial = getChatEvents();
+		if(!initial.isEmpty())
+			listener.accept(initial);
 		try
 		{
-			POST(protocol+"://"+CHATSITE.getUrl()+"/messages/"+messageid, urlencode(new String[][]{
-				{"fkey", fkey},
-				{"text", message}
-			}));
+			ChatWebSocket socket = new ChatWebSocket(this, rooms.first(), listener);
+			socket.connect();
+			eventsocket = socket;
+			return socket;
 		}
-		catch(Exception e)
+		catch(URISyntaxException e)
 		{
-			throw new IllegalArgumentException("Failed to edit message id "+messageid, e);
+			throw new IOException("Invalid WebSocket URL for "+CHATSITE, e);
 		}
 	}
-	public void inviteUser(final long userid, final long roomid)
+	public ChatWebSocket getEventSocket()
+	{
+		return eventsocket;
+	}
+	private static final String needMoreRepRegex = "id\\s*=\\s*\"bubble\"\\s*>\\s*You must have";
+	/**How long a room's write permission is trusted before the room page is checked again.*/
+	private static final long permissionTtlMillis = 10*60*1000;
+	/**Whether the bot may write to a room, and when that was checked.*/
+	private static final class RoomPermission
+	{
+		final boolean canWrite;
+		final long checkedMillis;
+		RoomPermission(boolean canWrite, long checkedMillis)
+		{
+			this.canWrite=canWrite;
+			this.checkedMillis=checkedMillis;
+		}
+	}
+	private final Map<Long, RoomPermission> permissions = new ConcurrentHashMap<>();
+	/**
+	 * Whether the bot has enough reputation to write to a room.<br>
+	 * The room page is only downloaded if the room was not checked yet, the
+	 * last check is older than {@link #permissionTtlMillis}, or the entry was
+	 * dropped after joining the room or a failed send.
+	 */
+	public boolean canWrite(final long roomid) throws IOException
 	{
 		try
 		{
-			POST(protocol+"://"+CHATSITE.getUrl()+"/users/invite", urlencode(new String[][]{
-				{"fkey", fkey},
-				{"UserId", ""+userid},
-				{"RoomId", ""+roomid}
-			}));
+			return canWriteAsync(roomid).get();
 		}
-		catch(Exception e)
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+		catch(InterruptedException e)
 		{
-			throw new IllegalArgumentException("Failed to invite user id "+
-					userid+" to room id "+roomid+".", e);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while checking room "+roomid);
 		}
 	}
-	public void bookmarkConversation(final long roomid, final String title, final long firstMessageId, final long lastMessageId)
+	/**
+	 * Like {@link #canWrite(long)}, but does not wait for the room page.
+	 */
+	public CompletableFuture<Boolean> canWriteAsync(final long roomid)
+	{
+		long now = System.currentTimeMillis();
+		RoomPermission permission = permissions.get(roomid);
+		if(permission!=null && now-permission.checkedMillis<=permissionTtlMillis)
+			return CompletableFuture.completedFuture(permission.canWrite);
+		return transport.getAsync(protocol+"://"+CHATSITE.getUrl()+"/rooms/"+roomid).thenApply((page)->{
+			boolean canWrite = !Utils.containsRegex(needMoreRepRegex, page);
+			permissions.put(roomid, new RoomPermission(canWrite, now));
+			return canWrite;
+		});
+	}
+	/**Makes the next {@link #canWrite(long)} for the room load the room page again.*/
+	void invalidatePermission(final long roomid)
+	{
+		permissions.remove(roomid);
+	}
+	/**
+	 * Gets the id of the posted message from the response to a new message.
+	 * @return The id, or -1 if the response has none.
+	 */
+	static long getMessageId(final String response)
 	{
 		try
 		{
-			POST(protocol+"://"+CHATSITE.getUrl()+"/conversation/new", urlencode(new String[][]{
+			return getNumValueJSON("id", response);
+		}
+		catch(RuntimeException e)
+		{
+			return -1;
+		}
+	}
+	/**
+	 * Posts a message right away, without waiting for the response.
+	 * @return A future that completes with the server's response, or with
+	 * {@code null} if the bot may not write to the room.
+	 */
+	CompletableFuture<String> postMessageAsync(final long roomid, final String message)
+	{
+		return canWriteAsync(roomid).thenCompose((canWrite)->{
+			if(!canWrite)
+				return CompletableFuture.completedFuture(null);
+			return postAsync("/chats/"+roomid+"/messages/new", new String[][]{
 				{"fkey", fkey},
-				{"roomId", ""+roomid},
-				{"firstMessageId", ""+firstMessageId},
-				{"lastMessageId", ""+lastMessageId},
-				{"title", title}
-			}));
-			
+				{"text", message}
+			});
+		});
+	}
+	/**Posts a form to a path of this site without waiting for the response.*/
+	private CompletableFuture<String> postAsync(final String path, final String[][] form)
+	{
+		return transport.postAsync(protocol+"://"+CHATSITE.getUrl()+path, urlencode(form));
+	}
+	/**
+	 * Waits for a request started by one of the asynchronous methods.
+	 * @throws IllegalArgumentException with the given message if the request failed.
+	 */
+	private static <T> T await(final CompletableFuture<T> future, final String errMsg)
+	{
+		try
+		{
+			return future.get();
 		}
-		catch(Exception e)
+		catch(ExecutionException e)
+		{
+			throw new IllegalArgumentException(errMsg, e.getCause());
+		}
+		catch(InterruptedException e)
 		{
-			throw new IllegalArgumentException("Failed to bookmark room id "+
-					roomid+" from message id "+firstMessageId+" to "+
-					lastMessageId+".", e);
+			Thread.currentThread().interrupt();
+			throw new IllegalArgumentException(errMsg, e);
 		}
 	}
+	public void putMessage(final long roomid, final String message)
+	{
+		await(putMessageAsync(roomid, message), "Failed to send message to room id "+roomid);
+	}
+	/**
+	 * Posts a message right away, bypassing the {@link OutboundQueue}.
+	 * @return A future that completes with the id of the posted message, or -1
+	 * if the message was empty or the bot may not write to the room.
+	 */
+	public CompletableFuture<Long> putMessageAsync(final long roomid, final String message)
+	{
+		if(message.trim().isEmpty())
+			return CompletableFuture.completedFuture(-1L);
+		return canWriteAsync(roomid).thenCompose((canWrite)->{
+			if(!canWrite){
+				System.out.println("Notice: Not enough reputation to send message to room "+roomid+" on site "+CHATSITE);
+				return CompletableFuture.completedFuture(-1L);
+			}
+			return postAsync("/chats/"+roomid+"/messages/new", new String[][]{
+				{"fkey", fkey},
+				{"text", message}
+			}).thenApply(ChatIO::getMessageId);
+		}).whenComplete((id, e)->{
+			if(e!=null)
+				//The permission may have changed, so check it again next time
+				invalidatePermission(roomid);
+		});
+	}
+	/**
+	 * Queues a message to be sent by this ChatIO's {@link OutboundQueue}.
+	 * @return A future that completes with the id of the posted message.
+	 */
+	public CompletableFuture<Long> queueMessage(final long roomid, final String message)
+	{
+		if(message.trim().isEmpty())
+			return CompletableFuture.completedFuture(-1L);
+		return outbound.add(roomid, message);
+	}
+	public OutboundQueue getOutboundQueue()
+	{
+		return outbound;
+	}
+	public void editMessage(final long messageid, final String message)
+	{
+		await(editMessageAsync(messageid, message), "Failed to edit message id "+messageid);
+	}
+	public CompletableFuture<Void> editMessageAsync(final long messageid, final String message)
+	{
+		return postAsync("/messages/"+messageid, new String[][]{
+			{"fkey", fkey},
+			{"text", message}
+		}).thenApply((response)->null);
+	}
+	public void inviteUser(final long userid, final long roomid)
+	{
+		await(inviteUserAsync(userid, roomid), "Failed to invite user id "+
+				userid+" to room id "+roomid+".");
+	}
+	public CompletableFuture<Void> inviteUserAsync(final long userid, final long roomid)
+	{
+		return postAsync("/users/invite", new String[][]{
+			{"fkey", fkey},
+			{"UserId", ""+userid},
+			{"RoomId", ""+roomid}
+		}).thenApply((response)->null);
+	}
+	public void bookmarkConversation(final long roomid, final String title, final long firstMessageId, final long lastMessageId)
+	{
+		await(bookmarkConversationAsync(roomid, title, firstMessageId, lastMessageId),
+				"Failed to bookmark room id "+roomid+" from message id "+
+				firstMessageId+" to "+lastMessageId+".");
+	}
+	public CompletableFuture<Void> bookmarkConversationAsync(final long roomid, final String title, final long firstMessageId, final long lastMessageId)
+	{
+		return postAsync("/conversation/new", new String[][]{
+			{"fkey", fkey},
+			{"roomId", ""+roomid},
+			{"firstMessageId", ""+firstMessageId},
+			{"lastMessageId", ""+lastMessageId},
+			{"title", title}
+		}).thenApply((response)->null);
+	}
 	/**
 	 * This should only be used to help control an off-topic discussion.
 	 * @param roomid - The id of the room to be put in timeout.
@@ -356,20 +553,19 @@ public class ChatIO
 	 */
 	public void roomTimeout(final long roomid, final long duration, final String reason)
 	{
-		try
-		{
-			POST(protocol+"://"+CHATSITE.getUrl()+"/rooms/timeout/"+roomid, urlencode(new String[][]{
-				{"fkey", fkey},
-				{"duration", ""+duration},
-				{"reason", reason}
-			}));
-			
-		}
-		catch(Exception e)
-		{
-			throw new IllegalArgumentException("Failed to set timeput for room id "+
-					roomid+".", e);
-		}
+		await(roomTimeoutAsync(roomid, duration, reason), "Failed to set timeput for room id "+
+				roomid+".");
+	}
+	/**
+	 * @see #roomTimeout(long, long, String)
+	 */
+	public CompletableFuture<Void> roomTimeoutAsync(final long roomid, final long duration, final String reason)
+	{
+		return postAsync("/rooms/timeout/"+roomid, new String[][]{
+			{"fkey", fkey},
+			{"duration", ""+duration},
+			{"reason", reason}
+		}).thenApply((response)->null);
 	}
 	public boolean isLoggedIn()
 	{
@@ -380,10 +576,18 @@ public class ChatIO
 	public void joinRoom(final Long... room)
 	{
 		synchronized(rooms){
-			for(Long r : room)
+			for(Long r : room){
 				rooms.add(r);
+				permissions.remove(r);
+				//Start loading the room's data, so it is there when asked for
+				RoomRegistry.get(CHATSITE, r);
+			}
 			updateChatEventGetterStringCache();
 		}
+		ChatWebSocket socket = eventsocket;
+		if(socket!=null)
+			//The socket only reports rooms the server knows we are in
+			socket.deliver(getChatEvents());
 	}
 	public void leaveRoom(final Long... room)
 	{
@@ -413,9 +617,10 @@ public class ChatIO
 				}
 				else if(rooms.remove(r))
 				{
+					permissions.remove(r);
 					try
 					{
-						POST(protocol+"://"+CHATSITE.getUrl()+"/chats/leave/"+r, urlencode(new String[][]{
+						transport.POST(protocol+"://"+CHATSITE.getUrl()+"/chats/leave/"+r, urlencode(new String[][]{
 							{"fkey",fkey},
 							{"quiet", "true"}
 						}));
@@ -433,13 +638,11 @@ public class ChatIO
 	public boolean rejoinFavoriteRooms(){
 		try
 		{
-			POST(protocol+"://"+CHATSITE.getUrl()+"/chats/join/favorite", urlencode(new String[][]{
+			transport.POST(protocol+"://"+CHATSITE.getUrl()+"/chats/join/favorite", urlencode(new String[][]{
 				{"fkey",fkey},
 				{"quiet", "true"},
 				{"immediate", "true"}
-			}), new String[][]{
-				{"Connection", "keep-alive"}
-			});
+			}));
 			return true;
 		}
 		catch(IOException e)
@@ -465,8 +668,8 @@ public class ChatIO
 	{
 		try
 		{
-			String fkey = search(fkeyHtmlRegex, GET(protocol+"://chat.stackoverflow.com/users/"+getMyUserId()));
-			POST(protocol+"://chat.stackoverflow.com/users/usermessage/"+getMyUserId(), urlencode(new String[][]{
+			String fkey = search(fkeyHtmlRegex, transport.GET(protocol+"://chat.stackoverflow.com/users/"+getMyUserId()));
+			transport.POST(protocol+"://chat.stackoverflow.com/users/usermessage/"+getMyUserId(), urlencode(new String[][]{
 				{"fkey", fkey},
 				{"message", newtext}
 			}));
@@ -477,17 +680,14 @@ public class ChatIO
 					CHATSITE, e);
 		}
 	}
+	/**
+	 * Gets users of this site, from the {@link UserCache} where possible.
+	 */
 	public ChatUserList getUserInfo(final long roomid, final Long... userid)
 	{
 		try
 		{
-			String useridstring = ""+userid[0];
-			for(int i=1;i<userid.length;++i)
-				useridstring+=","+userid[i];
-			return new ChatUserList(POST(protocol+"://chat.stackexchange.com/user/info", urlencode(new String[][]{
-				{"ids", useridstring},
-				{"roomId", ""+roomid}
-			})), CHATSITE);
+			return UserCache.getAll(CHATSITE, roomid, userid);
 		}
 		catch(Exception e)
 		{
@@ -516,12 +716,35 @@ public class ChatIO
 			cacheChatEventGetterString = urlencode(listtopost.toArray(new String[][]{}));
 		}
 	}
+	/**
+	 * How long each phase of this ChatIO's construction took.
+	 */
+	public PhaseTimer getStartupTimer(){
+		return startup;
+	}
+	public ChatSite getChatSite(){
+		return CHATSITE;
+	}
 	public String getFkey(){
 		return fkey;
 	}
 	public String getT(){
 		return t;
 	}
+	/**
+	 * The transport all of this ChatIO's requests go through. It holds the
+	 * site's login cookies.
+	 */
+	public ChatTransport getTransport(){
+		return transport;
+	}
+	/**
+	 * The circuit breaker that holds back polling and outgoing messages while
+	 * this site keeps failing.
+	 */
+	public CircuitBreaker getCircuitBreaker(){
+		return breaker;
+	}
 	public static String getProtocol(){
 		return protocol;
 	}
@@ -533,14 +756,36 @@ public class ChatIO
 	}
 	public void acknowledge(long messageId){
 		try{
-			WebRequest.POST(protocol+"://"+CHATSITE.getUrl()+"/messages/ack",Utils.urlencode(new String[][]{
-				{"id",""+messageId},
-				{"fkey",fkey}
-			}));
+			acknowledgeAsync(messageId).get();
 		}
-		catch(IOException e){
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		catch(ExecutionException e){
+			e.getCause().printStackTrace();
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
 		}
 	}
+	public CompletableFuture<Void> acknowledgeAsync(long messageId){
+		return acknowledgeAsync(""+messageId);
+	}
+	/**
+	 * @param messageIds One or more message ids, separated by commas
+	 */
+	CompletableFuture<Void> acknowledgeAsync(String messageIds){
+		return postAsync("/messages/ack", new String[][]{
+			{"id",messageIds},
+			{"fkey",fkey}
+		}).thenApply((response)->null);
+	}
+	/**
+	 * Acknowledges a message together with the others acknowledged around the
+	 * same time, in one request.
+	 * @see AckBatcher
+	 */
+	public CompletableFuture<Void> queueAcknowledge(long messageId){
+		return acks.add(messageId);
+	}
+	public AckBatcher getAckBatcher(){
+		return acks;
+	}
 }
@@ -0,0 +1,303 @@
+package chat.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import chat.ChatSite;
+
+/**
+ * Sends the HTTP requests of a chat site.<br>
+ * All sites share one {@link HttpClient}, which keeps connections to each
+ * host open between requests and uses HTTP/2 where the server supports it,
+ * so most requests do not pay for a new TLS handshake. Sites that share a
+ * login share a cookie jar: chat.stackexchange.com and
+ * chat.meta.stackexchange.com are logged in to through the Stack Exchange
+ * network, while chat.stackoverflow.com has a login of its own. Redirects are
+ * followed here instead of by the client, so cookies set along a redirect
+ * chain, as during login, are kept.
+ */
+public class ChatTransport
+{
+	private static final Duration connectTimeout = Duration.ofSeconds(10);
+	private static final Duration requestTimeout = Duration.ofSeconds(30);
+	private static final int maxRedirects = 10;
+	private static final String[][] defaultHeaders = {
+			{"Accept", "*/*"},
+			{"Accept-Encoding", "gzip, deflate"},
+			{"Accept-Language", "en-US,en;q=0.5"},
+			{"DNT", "1"},
+			{"Cache-Control", "no-cache"},
+			{"Upgrade-Insecure-Requests", "1"},
+			{"User-Agent", "Mozilla/5.0 (X11; Linux i686; rv:17.0) Gecko/20100101 Firefox/17.0"},
+	};
+	private static final Pattern charsetRegex = Pattern.compile("(?i)charset=\"?([^\";\\s]+)");
+	private static final HttpClient client = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_2)
+			.followRedirects(HttpClient.Redirect.NEVER)
+			.connectTimeout(connectTimeout)
+			.build();
+	private static final Map<ChatSite, ChatTransport> transports = new ConcurrentHashMap<>();
+	/**The cookie jars, by the network whose login they hold.*/
+	private static final Map<String, CookieManager> jars = new ConcurrentHashMap<>();
+	/**The login in progress of each network.*/
+	private static final Map<String, CompletableFuture<Void>> logins = new ConcurrentHashMap<>();
+
+	/**A login to a network, which fills the network's cookie jar.*/
+	public static interface Login
+	{
+		public abstract void run() throws IOException;
+	}
+	/**
+	 * Thrown when the server answers with an error status. The message has the
+	 * same form as the one of {@link java.net.HttpURLConnection}.
+	 */
+	public static class HttpStatusException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		private final int status;
+		private final String body;
+		public HttpStatusException(int status, URI uri, String body)
+		{
+			super("Server returned HTTP response code: "+status+" for URL: "+uri);
+			this.status=status;
+			this.body=body;
+		}
+		public int getStatus()
+		{
+			return status;
+		}
+		public String getBody()
+		{
+			return body;
+		}
+	}
+
+	private final ChatSite site;
+	private final CookieManager cookies;
+
+	private ChatTransport(ChatSite site)
+	{
+		this.site=site;
+		this.cookies=jars.computeIfAbsent(getNetwork(site), (network)->new CookieManager(null, CookiePolicy.ACCEPT_ALL));
+	}
+	/**
+	 * The network a site's login belongs to. Sites of the same network share their cookies.
+	 */
+	static String getNetwork(ChatSite site)
+	{
+		switch(site){
+			case STACKEXCHANGE:
+			case METASTACKEXCHANGE:
+				return "stackexchange.com";
+			default:
+				return site.getUrl();
+		}
+	}
+	/**
+	 * The transport of a site; every site has exactly one.
+	 */
+	public static ChatTransport forSite(ChatSite site)
+	{
+		return transports.computeIfAbsent(site, ChatTransport::new);
+	}
+	public ChatSite getChatSite()
+	{
+		return site;
+	}
+	/**
+	 * Logs in to the site's network. If a login of the network is in progress
+	 * this waits for it instead and shares its outcome, so sites that log in at
+	 * the same time do not log in twice. Only logins in progress are kept, so a
+	 * later call logs in again, such as after the session expired.
+	 * @throws IOException if the login, or the one waited for, failed.
+	 */
+	public void loginToNetwork(Login login) throws IOException
+	{
+		String network = getNetwork(site);
+		CompletableFuture<Void> created = new CompletableFuture<>();
+		CompletableFuture<Void> running = logins.putIfAbsent(network, created);
+		if(running!=null){
+			await(running);
+			return;
+		}
+		try{
+			login.run();
+			created.complete(null);
+		}
+		catch(IOException | RuntimeException e){
+			created.completeExceptionally(e);
+			throw e;
+		}
+		finally{
+			logins.remove(network, created);
+		}
+	}
+	/**
+	 * The cookie jar of the site's network, shared with the other sites of that network.
+	 */
+	public CookieManager getCookies()
+	{
+		return cookies;
+	}
+	/**
+	 * Opens a connection to the chat server in the background, so the first
+	 * real request finds it ready.
+	 */
+	public void warmUp()
+	{
+		URI uri = URI.create(ChatIO.getProtocol()+"://"+site.getUrl()+"/");
+		HttpRequest request = HttpRequest.newBuilder(uri)
+				.method("HEAD", HttpRequest.BodyPublishers.noBody())
+				.timeout(requestTimeout)
+				.build();
+		client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+			.whenComplete((response, e)->{
+				if(e!=null)
+					System.out.println("Failed to warm up connection to "+site.getUrl());
+			});
+	}
+	public String GET(String url) throws IOException
+	{
+		return await(send("GET", URI.create(url), null, null, 0));
+	}
+	public String POST(String url, String data) throws IOException
+	{
+		return POST(url, data, null);
+	}
+	/**
+	 * @param headers Additional headers, as name-value pairs
+	 */
+	public String POST(String url, String data, String[][] headers) throws IOException
+	{
+		return await(send("POST", URI.create(url), data, headers, 0));
+	}
+	/**
+	 * Sends a GET request without waiting for the response.
+	 * @return A future that completes with the response body, or with an
+	 * {@link IOException} if the request failed.
+	 */
+	public CompletableFuture<String> getAsync(String url)
+	{
+		return send("GET", URI.create(url), null, null, 0);
+	}
+	/**
+	 * Posts form data without waiting for the response.
+	 * @return A future that completes with the response body, or with an
+	 * {@link IOException} if the request failed.
+	 */
+	public CompletableFuture<String> postAsync(String url, String data)
+	{
+		return send("POST", URI.create(url), data, null, 0);
+	}
+	private static <T> T await(CompletableFuture<T> future) throws IOException
+	{
+		try{
+			return future.get();
+		}
+		catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+		catch(InterruptedException e){
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a response");
+		}
+	}
+	/**
+	 * Sends a request, following redirects.
+	 * @param data The form data to post, or {@code null} for a request without a body
+	 */
+	CompletableFuture<String> send(String method, URI uri, String data, String[][] headers, int redirects)
+	{
+		HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(requestTimeout);
+		for(String[] header : defaultHeaders)
+			builder.header(header[0], header[1]);
+		if(headers!=null)
+			for(String[] header : headers)
+				builder.setHeader(header[0], header[1]);
+		try{
+			for(Map.Entry<String, List<String>> cookie : cookies.get(uri, Collections.emptyMap()).entrySet())
+				for(String value : cookie.getValue())
+					builder.header(cookie.getKey(), value);
+		}
+		catch(IOException e){
+			return CompletableFuture.failedFuture(e);
+		}
+		if(data==null)
+			builder.method(method, HttpRequest.BodyPublishers.noBody());
+		else
+			builder.header("Content-Type", "application/x-www-form-urlencoded")
+				.method(method, HttpRequest.BodyPublishers.ofString(data));
+		return client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofByteArray())
+			.thenCompose((response)->{
+				try{
+					cookies.put(uri, response.headers().map());
+					int status = response.statusCode();
+					String location = response.headers().firstValue("Location").orElse(null);
+					if(status/100==3 && location!=null){
+						if(redirects>=maxRedirects)
+							throw new IOException("Too many redirects from "+uri);
+						boolean keepMethod = status==307 || status==308;
+						return send(keepMethod ? method : "GET", uri.resolve(location),
+								keepMethod ? data : null, keepMethod ? headers : null, redirects+1);
+					}
+					String body = decode(response);
+					if(status>=400)
+						throw new HttpStatusException(status, uri, body);
+					return CompletableFuture.completedFuture(body);
+				}
+				catch(IOException e){
+					throw new CompletionException(e);
+				}
+			});
+	}
+	private static String decode(HttpResponse<byte[]> response) throws IOException
+	{
+		byte[] bytes = response.body();
+		String encoding = response.headers().firstValue("Content-Encoding").orElse("").trim();
+		if(encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("deflate")){
+			try(InputStream in = encoding.equalsIgnoreCase("gzip")
+					? new GZIPInputStream(new ByteArrayInputStream(bytes))
+					: new InflaterInputStream(new ByteArrayInputStream(bytes))){
+				bytes = in.readAllBytes();
+			}
+		}
+		Charset charset = StandardCharsets.UTF_8;
+		Matcher m = charsetRegex.matcher(response.headers().firstValue("Content-Type").orElse(""));
+		if(m.find()){
+			try{
+				charset = Charset.forName(m.group(1));
+			}
+			catch(IllegalArgumentException e){
+				//Unknown charset, keep UTF-8
+			}
+		}
+		return new String(bytes, charset);
+	}
+}
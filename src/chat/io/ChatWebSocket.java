@@ -2,33 +2,69 @@ package chat.io;
 
 import static utils.Utils.urlencode;
 import static utils.Utils.getStringValueJSON;
-import static utils.WebRequest.POST;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.UnknownHostException;
+import java.util.function.Consumer;
+import chat.events.ChatEventList;
 import utils.WebSocket;
 
+/**
+ * Receives the events of a {@link ChatIO} over the chat server's WebSocket.<br>
+ * The server pushes messages in the same format as the <code>/events</code>
+ * endpoint. On every (re)connect a new socket URL is requested from
+ * <code>/ws-auth</code> with the ChatIO's current <code>l=</code> cursor, so
+ * events that happened while disconnected are replayed.
+ */
 public class ChatWebSocket extends WebSocket
 {
-	public ChatWebSocket(ChatIO chat, long roomid) throws UnknownHostException, MalformedURLException, URISyntaxException, IOException
+	private final ChatIO chat;
+	private final long roomid;
+	private final Consumer<ChatEventList> listener;
+	/**
+	 * @param chat The ChatIO whose events are received
+	 * @param roomid A room the ChatIO is in, used to authenticate the socket
+	 * @param listener Receives every non-empty list of events
+	 */
+	public ChatWebSocket(ChatIO chat, long roomid, Consumer<ChatEventList> listener) throws URISyntaxException, IOException
 	{
-		super(getUrl(chat, roomid));
-		// TODO Auto-generated constructor stub
+		super(new URI(getUrl(chat, roomid)), new String[][]{
+			{"Origin", ChatIO.getProtocol()+"://"+chat.getChatSite().getUrl()}
+		});
+		this.chat=chat;
+		this.roomid=roomid;
+		this.listener=listener;
+		setAutoReconnect(true);
 	}
-	private static String getUrl(ChatIO chat, long roomid) throws MalformedURLException, IOException
+	private static String getUrl(ChatIO chat, long roomid) throws IOException
 	{
 		final String fkey = chat.getFkey();
-		String urljson = POST("https://chat.stackoverflow.com/ws-auth", urlencode(new String[][]{
+		String urljson = chat.getTransport().POST(ChatIO.getProtocol()+"://"+chat.getChatSite().getUrl()+"/ws-auth", urlencode(new String[][]{
 			{"fkey",fkey},
 			{"roomid",""+roomid}
 		}));
 		String url = getStringValueJSON("url", urljson)+"?l="+chat.getT();
 		return url;
 	}
-	public void onMessage(String message)
+	@Override
+	protected URI getReconnectUri() throws IOException
 	{
-		System.out.println("Recieved message from socket: "+message);
-		ChatWebSocket.this.onMessage(message);
+		try{
+			return new URI(getUrl(chat, roomid));
+		}
+		catch(URISyntaxException e){
+			throw new IOException(e);
+		}
+	}
+	@Override
+	protected void onMessage(String message)
+	{
+		deliver(chat.decodeEvents(message));
+	}
+	/**Passes events to this socket's listener.*/
+	void deliver(ChatEventList events)
+	{
+		if(!events.isEmpty())
+			listener.accept(events);
 	}
 }
@@ -0,0 +1,145 @@
+package chat.io;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stops requests to a chat site while it keeps failing.<br>
+ * After {@link #failureThreshold} failures in a row the circuit opens and
+ * every request is held back. Once the open period ends, a single probe
+ * request is let through (half-open): if it succeeds the circuit closes, if
+ * it fails the circuit opens again for twice as long, up to
+ * {@link #maxOpenMillis}. Open periods are jittered, so sites that failed
+ * together do not all probe at the same moment.
+ */
+public class CircuitBreaker
+{
+	public static enum State{
+		/**Requests go through.*/
+		CLOSED,
+		/**Requests are held back.*/
+		OPEN,
+		/**One probe request is allowed to find out whether the site is back.*/
+		HALF_OPEN,
+	}
+	private static final int failureThreshold = 3;
+	private static final long minOpenMillis = 2000;
+	private static final long maxOpenMillis = 5*60*1000;
+
+	private final String name;
+	private State state = State.CLOSED;
+	private int failures = 0;
+	/**The number of times the circuit opened since it was last closed.*/
+	private int opened = 0;
+	private long openUntilNanos;
+	private boolean probing = false;
+	private long tripCount = 0;
+
+	/**
+	 * @param name The name used in log messages, such as the site's name
+	 */
+	public CircuitBreaker(String name)
+	{
+		this.name=name;
+	}
+	/**
+	 * Asks whether a request may be sent now. If the open period is over, the
+	 * caller becomes the probe and must report the result.
+	 * @return {@code true} if the request may be sent.
+	 */
+	public synchronized boolean tryAcquire()
+	{
+		switch(state){
+			case CLOSED:
+				return true;
+			case OPEN:
+				if(openUntilNanos-System.nanoTime()>0)
+					return false;
+				state = State.HALF_OPEN;
+				probing = false;
+				//Fall through to claim the probe
+			case HALF_OPEN:
+			default:
+				if(probing)
+					return false;
+				probing = true;
+				return true;
+		}
+	}
+	/**Reports that a request succeeded.*/
+	public synchronized void onSuccess()
+	{
+		if(state!=State.CLOSED)
+			System.out.println("Circuit for "+name+" closed");
+		state = State.CLOSED;
+		failures = 0;
+		opened = 0;
+		probing = false;
+	}
+	/**Reports that a request failed.*/
+	public synchronized void onFailure()
+	{
+		++failures;
+		probing = false;
+		if(state==State.HALF_OPEN || failures>=failureThreshold)
+			open();
+	}
+	private void open()
+	{
+		long delay = minOpenMillis<<Math.min(opened, 20);
+		delay = Math.min(maxOpenMillis, delay);
+		//Between half and all of the delay
+		delay = delay/2+ThreadLocalRandom.current().nextLong(delay/2+1);
+		++opened;
+		++tripCount;
+		state = State.OPEN;
+		openUntilNanos = System.nanoTime()+delay*1000000;
+		System.out.println("Circuit for "+name+" opened for "+delay+" ms after "+failures+" failures");
+	}
+	/**
+	 * The time until a request may be tried again, in milliseconds, or 0 if it may be now.
+	 */
+	public synchronized long getRetryDelay()
+	{
+		switch(state){
+			case OPEN:
+				return Math.max(0, (openUntilNanos-System.nanoTime()+999999)/1000000);
+			case HALF_OPEN:
+				return probing ? minOpenMillis/4 : 0;
+			default:
+				return 0;
+		}
+	}
+	public synchronized State getState()
+	{
+		return state;
+	}
+	/**
+	 * The number of times the circuit opened.
+	 */
+	public synchronized long getTripCount()
+	{
+		return tripCount;
+	}
+	/**
+	 * Whether a failure says something about the health of the site. Client
+	 * errors other than timeouts and rate limiting are caused by the request,
+	 * so they do not count.
+	 */
+	public static boolean isSiteFailure(Throwable e)
+	{
+		while((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause()!=null)
+			e = e.getCause();
+		if(e instanceof ChatTransport.HttpStatusException){
+			int status = ((ChatTransport.HttpStatusException)e).getStatus();
+			return status>=500 || status==408 || status==429;
+		}
+		return e instanceof java.io.IOException;
+	}
+	@Override
+	public synchronized String toString()
+	{
+		return name+" "+state+(state==State.OPEN ? " for "+getRetryDelay()+" ms" : "");
+	}
+}
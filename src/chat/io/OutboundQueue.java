@@ -0,0 +1,396 @@
+package chat.io;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sends the messages of a {@link ChatIO}, scheduled by a single background
+ * thread.<br>
+ * Posts are sent asynchronously, one at a time per room, so a slow post only
+ * holds up its own room. Every room has a token bucket, so a burst of replies to one room is spread
+ * out instead of being throttled by the server. Small plain-text messages
+ * that wait for the same room are sent together as one multi-line message;
+ * chat does not format multi-line messages, so only messages without any
+ * formatting are merged, which look the same either way. When the server
+ * answers "You can perform this action again in N seconds" the room is paused
+ * for that long and the message is sent again; other failures are retried
+ * with exponential backoff. While the site's {@link CircuitBreaker} is open,
+ * messages are held.
+ */
+public class OutboundQueue
+{
+	/**The number of messages a room can take at once.*/
+	private static final int roomBurst = 3;
+	/**The time it takes for a room to accept one more message, in milliseconds.*/
+	private static final long roomRefillMillis = 1000;
+	private static final int maxAttempts = 5;
+	private static final long retryDelayMillis = 1000;
+	private static final long maxRetryDelayMillis = 60000;
+	/**Messages up to this length may be merged with others.*/
+	private static final int smallMessageLength = 100;
+	private static final int maxMergedLength = 500;
+	private static final Pattern throttledRegex = Pattern.compile("(?i)perform this action again in (\\d+) second");
+	private static final Pattern replyRegex = Pattern.compile("^:\\d+ ");
+	/**Characters that start chat markdown, links or tags.*/
+	private static final String formattingChars = "*_`[]<>\\";
+
+	/**A message waiting to be sent.*/
+	private static final class Pending
+	{
+		final String message;
+		final long queuedNanos = System.nanoTime();
+		final CompletableFuture<Long> result = new CompletableFuture<>();
+		Pending(String message)
+		{
+			this.message=message;
+		}
+	}
+	/**The waiting messages and the token bucket of a room.*/
+	private static final class Room
+	{
+		final ArrayDeque<Pending> pending = new ArrayDeque<>();
+		double tokens = roomBurst;
+		long refilledNanos = System.nanoTime();
+		long pausedUntilNanos = refilledNanos;
+		int attempts = 0;
+		/**Whether a post to this room is in flight; the room waits for it.*/
+		boolean sending = false;
+		void refill(long now)
+		{
+			tokens = Math.min(roomBurst, tokens+(now-refilledNanos)/(roomRefillMillis*1e6));
+			refilledNanos = now;
+		}
+		/**The time at which this room can send again, or {@code now} if it can already.*/
+		long readyAt(long now)
+		{
+			long ready = now;
+			if(pausedUntilNanos-now>0)
+				ready = pausedUntilNanos;
+			if(tokens<1)
+				ready = Math.max(ready, now+(long)((1-tokens)*roomRefillMillis*1e6));
+			return ready;
+		}
+	}
+
+	private final ChatIO chat;
+	private final Object lock = new Object();
+	/**Rooms in the order they get a turn; a room goes to the back after sending.*/
+	private final Map<Long, Room> rooms = new LinkedHashMap<>();
+	private Thread sender;
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong merged = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	OutboundQueue(ChatIO chat)
+	{
+		this.chat=chat;
+	}
+	/**
+	 * Queues a message to a room.
+	 * @return A future that completes with the id of the posted message (or -1 if
+	 * the server did not report one), or exceptionally if it could not be sent.
+	 */
+	public CompletableFuture<Long> add(long roomid, String message)
+	{
+		Pending pending = new Pending(message);
+		synchronized(lock){
+			rooms.computeIfAbsent(roomid, (id)->new Room()).pending.add(pending);
+			if(sender==null){
+				sender = new Thread(this::run, "Sender-"+chat.getChatSite().getAbbreviation());
+				sender.setDaemon(true);
+				sender.start();
+			}
+			lock.notifyAll();
+		}
+		return pending.result;
+	}
+	private void run()
+	{
+		while(true){
+			long roomid;
+			List<Pending> batch;
+			synchronized(lock){
+				Map.Entry<Long, Room> next;
+				while((next = nextReady())==null){
+					try{
+						long wait = nextWakeMillis();
+						lock.wait(wait);
+					}
+					catch(InterruptedException e){
+						e.printStackTrace();
+					}
+				}
+				roomid = next.getKey();
+				Room room = next.getValue();
+				batch = takeBatch(room.pending);
+				room.tokens -= 1;
+				room.sending = true;
+				//Give the other rooms a turn first
+				rooms.remove(roomid);
+				rooms.put(roomid, room);
+			}
+			CircuitBreaker breaker = chat.getCircuitBreaker();
+			if(!breaker.tryAcquire()){
+				//Hold the messages until the site is back
+				synchronized(lock){
+					Room room = rooms.computeIfAbsent(roomid, (id)->new Room());
+					for(int i=batch.size()-1;i>=0;--i)
+						room.pending.addFirst(batch.get(i));
+					room.tokens += 1;
+					room.sending = false;
+					try{
+						lock.wait(Math.max(1, breaker.getRetryDelay()));
+					}
+					catch(InterruptedException e){
+						e.printStackTrace();
+					}
+				}
+				continue;
+			}
+			send(roomid, batch);
+		}
+	}
+	/**The first room that may send now, or {@code null}. Drops rooms with nothing to send.*/
+	private Map.Entry<Long, Room> nextReady()
+	{
+		long now = System.nanoTime();
+		for(Iterator<Map.Entry<Long, Room>> it = rooms.entrySet().iterator(); it.hasNext();){
+			Map.Entry<Long, Room> entry = it.next();
+			Room room = entry.getValue();
+			room.refill(now);
+			if(room.sending)
+				continue;
+			if(room.pending.isEmpty()){
+				if(room.tokens>=roomBurst && room.pausedUntilNanos-now<=0)
+					it.remove();
+				continue;
+			}
+			if(room.readyAt(now)==now)
+				return entry;
+		}
+		return null;
+	}
+	/**The time until a waiting room can send, or 0 to wait until a message is added.*/
+	private long nextWakeMillis()
+	{
+		long now = System.nanoTime(), wake = Long.MAX_VALUE;
+		for(Room room : rooms.values())
+			if(!room.pending.isEmpty() && !room.sending)
+				wake = Math.min(wake, room.readyAt(now)-now);
+		//Rooms that are sending wake the thread when their post completes
+		return wake==Long.MAX_VALUE ? 0 : Math.max(1, wake/1000000+1);
+	}
+	private static boolean isMergeable(String message)
+	{
+		return message.length()<=smallMessageLength && message.indexOf('\n')<0
+				&& isPlainText(message) && !replyRegex.matcher(message).find();
+	}
+	/**
+	 * Whether a message looks the same as a line of a multi-line message: it has
+	 * no markdown, links or tags, and does not start with a space, which would
+	 * make the merged message fixed-width.
+	 */
+	private static boolean isPlainText(String message)
+	{
+		if(message.isEmpty() || message.charAt(0)<=' ' || message.startsWith("---") || message.contains("://"))
+			return false;
+		for(int i=0;i<message.length();++i)
+			if(formattingChars.indexOf(message.charAt(i))>=0)
+				return false;
+		return true;
+	}
+	/**Takes the next message, and the small messages after it if it is small too.*/
+	private static List<Pending> takeBatch(ArrayDeque<Pending> pending)
+	{
+		List<Pending> batch = new ArrayList<>();
+		Pending first = pending.poll();
+		batch.add(first);
+		if(isMergeable(first.message)){
+			int length = first.message.length();
+			Pending next;
+			while((next = pending.peek())!=null && isMergeable(next.message)
+					&& length+1+next.message.length()<=maxMergedLength){
+				length += 1+next.message.length();
+				batch.add(pending.poll());
+			}
+		}
+		return batch;
+	}
+	/**Starts posting a batch; the room is re-armed when the post completes.*/
+	private void send(long roomid, List<Pending> batch)
+	{
+		StringBuilder text = new StringBuilder();
+		for(Pending pending : batch)
+			text.append(text.length()>0 ? "\n" : "").append(pending.message);
+		CompletableFuture<String> post;
+		try{
+			post = chat.postMessageAsync(roomid, text.toString());
+		}
+		catch(RuntimeException e){
+			post = CompletableFuture.failedFuture(e);
+		}
+		post.whenComplete((response, e)->{
+			try{
+				if(e==null)
+					onSent(roomid, batch, response);
+				else
+					onFailed(roomid, batch, e instanceof CompletionException && e.getCause()!=null ? e.getCause() : e);
+			}
+			finally{
+				synchronized(lock){
+					Room room = rooms.get(roomid);
+					if(room!=null)
+						room.sending = false;
+					lock.notifyAll();
+				}
+			}
+		});
+	}
+	private void onFailed(long roomid, List<Pending> batch, Throwable t)
+	{
+		Exception e = t instanceof Exception ? (Exception)t : new IOException(t);
+		if(CircuitBreaker.isSiteFailure(e))
+			chat.getCircuitBreaker().onFailure();
+		else
+			chat.getCircuitBreaker().onSuccess();
+		retry(roomid, batch, e);
+	}
+	private void onSent(long roomid, List<Pending> batch, String response)
+	{
+		chat.getCircuitBreaker().onSuccess();
+		if(response!=null){
+			Matcher m = throttledRegex.matcher(response);
+			if(m.find()){
+				retry(roomid, batch, new IOException(response));
+				return;
+			}
+		}
+		synchronized(lock){
+			Room room = rooms.get(roomid);
+			if(room!=null)
+				room.attempts = 0;
+		}
+		long id = -1;
+		if(response==null)
+			System.out.println("Notice: Not enough reputation to send message to room "+roomid+" on site "+chat.getChatSite());
+		else
+			id = ChatIO.getMessageId(response);
+		long now = System.nanoTime();
+		sent.incrementAndGet();
+		if(batch.size()>1)
+			merged.addAndGet(batch.size()-1);
+		for(Pending pending : batch){
+			long latency = now-pending.queuedNanos;
+			totalLatencyNanos.addAndGet(latency);
+			maxLatencyNanos.accumulateAndGet(latency, Math::max);
+			pending.result.complete(id);
+		}
+	}
+	/**Puts a batch back at the front of its room and pauses the room, or gives up on it.*/
+	private void retry(long roomid, List<Pending> batch, Exception e)
+	{
+		String errMsg = String.valueOf(e.getMessage());
+		boolean isThrottled = errMsg.contains("HTTP response code: 409");
+		if(e instanceof ChatTransport.HttpStatusException)
+			//The server explains the throttling in the body
+			errMsg = ((ChatTransport.HttpStatusException)e).getBody();
+		Matcher m = throttledRegex.matcher(errMsg);
+		isThrottled |= m.find();
+		if(isThrottled)
+			throttled.incrementAndGet();
+		else
+			chat.invalidatePermission(roomid);
+		synchronized(lock){
+			Room room = rooms.computeIfAbsent(roomid, (id)->new Room());
+			if(++room.attempts>=maxAttempts){
+				room.attempts = 0;
+				failed.addAndGet(batch.size());
+				System.err.println("Giving up on message to "+chat.getChatSite()+" room "+roomid);
+				e.printStackTrace();
+				for(Pending pending : batch)
+					pending.result.completeExceptionally(e);
+				return;
+			}
+			long delay = Math.min(maxRetryDelayMillis, retryDelayMillis<<(room.attempts-1));
+			if(m.find(0))
+				delay = Math.max(delay, Long.parseLong(m.group(1))*1000);
+			//Jitter, so rooms paused together do not all resume together
+			delay += ThreadLocalRandom.current().nextLong(delay/4+1);
+			room.pausedUntilNanos = System.nanoTime()+delay*1000000;
+			room.tokens = 0;
+			for(int i=batch.size()-1;i>=0;--i)
+				room.pending.addFirst(batch.get(i));
+			System.out.println((isThrottled ? "Throttled" : "Failed to send")+" on "+chat.getChatSite()
+					+" room "+roomid+", retrying in "+delay+" ms");
+		}
+	}
+	/**
+	 * The number of messages waiting to be sent.
+	 */
+	public int getPendingCount()
+	{
+		synchronized(lock){
+			int count = 0;
+			for(Room room : rooms.values())
+				count += room.pending.size();
+			return count;
+		}
+	}
+	/**
+	 * The number of messages posted, counting merged messages once.
+	 */
+	public long getSentCount()
+	{
+		return sent.get();
+	}
+	/**
+	 * The number of messages that were sent as part of an earlier message.
+	 */
+	public long getMergedCount()
+	{
+		return merged.get();
+	}
+	/**
+	 * The number of times the server throttled a message.
+	 */
+	public long getThrottledCount()
+	{
+		return throttled.get();
+	}
+	/**
+	 * The number of messages that were given up on.
+	 */
+	public long getFailedCount()
+	{
+		return failed.get();
+	}
+	/**
+	 * The average time between queueing a message and posting it, in milliseconds.
+	 */
+	public double getAverageLatency()
+	{
+		long count = sent.get()+merged.get();
+		return count==0 ? 0 : totalLatencyNanos.get()/1e6/count;
+	}
+	/**
+	 * The longest time between queueing a message and posting it, in milliseconds.
+	 */
+	public double getMaxLatency()
+	{
+		return maxLatencyNanos.get()/1e6;
+	}
+}
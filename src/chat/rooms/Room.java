@@ -1,10 +1,11 @@
 package chat.rooms;
 
 import chat.ChatSite;
+import chat.io.ChatIO;
+import chat.io.ChatTransport;
 import utils.json.JsonObject;
 import static utils.Utils.getStringValueJSON;
 import static utils.Utils.getBooleanValueJSON;
-import static utils.WebRequest.POST;
 import java.util.Arrays;
 
 public class Room extends JsonObject<Room>
@@ -12,29 +13,29 @@ public class Room extends JsonObject<Room>
 	/**The room's id.*/
 	private final long id;
 	/**The room's name.*/
-	private String name;
+	private volatile String name;
 	/**The room's description.*/
-	private String description;
+	private volatile String description;
 	/**{@code true} iff the room is a favorite of the active user.*/
-	private boolean isFavorite;
+	private volatile boolean isFavorite;
 	/**The HTML for the room's activity column spark line chart.*/
-	private String usage;
+	private volatile String usage;
 	/**This room's tags.*/
-	private String[] tags;
+	private volatile String[] tags = new String[0];
+	/**When this room's data was last loaded, in milliseconds, or 0 if never.*/
+	private volatile long loadedMillis;
 	/**The corresponding chat site.*/
 	private final ChatSite CHATSITE;
 	
+	/**
+	 * Loads a room's data right away.
+	 * @see RoomRegistry#get(ChatSite, long) for data that does not need to be current
+	 */
 	public Room(ChatSite chatsite, long roomid){
-		CHATSITE=chatsite;
-		id = roomid;
+		this(chatsite, roomid, null);
 		try
 		{
-			String response = POST("https://chat.stackoverflow.com/rooms/thumbs/138769?showUsage=true&host=", "");
-			name = getStringValueJSON("name", response);
-			description = getStringValueJSON("description", response);
-			isFavorite = getBooleanValueJSON("isFavorite", response);
-			usage = getStringValueJSON("usage", response);
-			tags = getStringValueJSON("tags", response).replaceAll("(?i)<((\\/)a|a\\s+[^>]+)>", "").split(" ");
+			update(ChatTransport.forSite(chatsite).POST(getThumbsUrl(chatsite, roomid), ""));
 		}
 		catch(Exception e)
 		{
@@ -42,6 +43,44 @@ public class Room extends JsonObject<Room>
 			e.printStackTrace();
 		}
 	}
+	/**
+	 * @param response A response of {@link #getThumbsUrl(ChatSite, long)}, or
+	 * {@code null} to create the room without data.
+	 */
+	Room(ChatSite chatsite, long roomid, String response){
+		CHATSITE=chatsite;
+		id = roomid;
+		if(response!=null)
+			update(response);
+	}
+	static String getThumbsUrl(ChatSite chatsite, long roomid){
+		return ChatIO.getProtocol()+"://"+chatsite.getUrl()+"/rooms/thumbs/"+roomid+"?showUsage=true&host=";
+	}
+	/**Replaces this room's data with the one in a response of {@link #getThumbsUrl(ChatSite, long)}.*/
+	void update(String response){
+		name = getStringValueJSON("name", response);
+		description = getStringValueJSON("description", response);
+		isFavorite = getBooleanValueJSON("isFavorite", response);
+		usage = getStringValueJSON("usage", response);
+		tags = getStringValueJSON("tags", response).replaceAll("(?i)<((\\/)a|a\\s+[^>]+)>", "").split(" ");
+		loadedMillis = System.currentTimeMillis();
+	}
+	/**Replaces this room's data with the data of another instance of it.*/
+	void copyFrom(Room loaded){
+		name = loaded.name;
+		description = loaded.description;
+		isFavorite = loaded.isFavorite;
+		usage = loaded.usage;
+		tags = loaded.tags;
+		loadedMillis = loaded.loadedMillis;
+	}
+	/**
+	 * When this room's data was last loaded, in milliseconds since the epoch,
+	 * or 0 if it was never loaded.
+	 */
+	public long getLoadedMillis(){
+		return loadedMillis;
+	}
 	public long getId(){
 		return id;
 	}
@@ -59,6 +98,7 @@ public class Room extends JsonObject<Room>
 	}
 	public String[] getTags()
 	{
+		String[] tags = this.tags;
 		return Arrays.copyOf(tags, tags.length);
 	}
 	public ChatSite getChatSite(){
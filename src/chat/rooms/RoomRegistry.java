@@ -0,0 +1,126 @@
+package chat.rooms;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import chat.ChatSite;
+import chat.io.ChatTransport;
+
+/**
+ * Keeps the data of every room the bot has looked at, per site.<br>
+ * A room is loaded the first time it is asked for. After that, readers get
+ * the cached room at once; if its data is older than {@link #ttlMillis} it is
+ * reloaded in the background and updated in place. Only one load per room
+ * runs at a time; a room invalidated during a load is loaded again after it.
+ * After a failed load the room is not asked for again for
+ * {@link #failureBackoffMillis}.
+ */
+public final class RoomRegistry
+{
+	private RoomRegistry(){}
+
+	private static final long ttlMillis = 15*60*1000;
+	private static final long failureBackoffMillis = 30*1000;
+	private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+	private static final Map<String, CompletableFuture<Room>> loading = new ConcurrentHashMap<>();
+	/**Rooms whose data changed since their last load started.*/
+	private static final Set<String> stale = ConcurrentHashMap.newKeySet();
+	/**The last failed load of each room, while it is backed off.*/
+	private static final Map<String, Failure> failures = new ConcurrentHashMap<>();
+
+	/**A failed load, and when the room may be loaded again.*/
+	private static final class Failure
+	{
+		final Throwable cause;
+		final long retryAtMillis;
+		Failure(Throwable cause)
+		{
+			this.cause=cause;
+			this.retryAtMillis=System.currentTimeMillis()+failureBackoffMillis;
+		}
+	}
+
+	private static String key(ChatSite site, long roomid)
+	{
+		return site.name()+'/'+roomid;
+	}
+	/**
+	 * Gets a room without waiting for the network.
+	 * @return The room, whose data may be somewhat old, or {@code null} if it
+	 * was not loaded yet; it is then being loaded.
+	 */
+	public static Room get(ChatSite site, long roomid)
+	{
+		Room room = rooms.get(key(site, roomid));
+		if(room==null || System.currentTimeMillis()-room.getLoadedMillis()>ttlMillis
+				|| stale.contains(key(site, roomid)))
+			load(site, roomid);
+		return room==null || room.getLoadedMillis()==0 ? null : room;
+	}
+	/**
+	 * Gets a room, waiting for it to be loaded if it was not yet.
+	 * @return A future that completes with the room.
+	 */
+	public static CompletableFuture<Room> getAsync(ChatSite site, long roomid)
+	{
+		Room room = get(site, roomid);
+		if(room!=null)
+			return CompletableFuture.completedFuture(room);
+		CompletableFuture<Room> future = loading.get(key(site, roomid));
+		return future!=null ? future : load(site, roomid);
+	}
+	/**
+	 * Reloads a room in the background, such as after its name changed. If the
+	 * room is being loaded, it is loaded again once that load is done, since
+	 * that load may have started before the change.
+	 */
+	public static void invalidate(ChatSite site, long roomid)
+	{
+		stale.add(key(site, roomid));
+		load(site, roomid);
+	}
+	private static CompletableFuture<Room> load(ChatSite site, long roomid)
+	{
+		String key = key(site, roomid);
+		Failure failure = failures.get(key);
+		if(failure!=null && System.currentTimeMillis()<failure.retryAtMillis)
+			return CompletableFuture.failedFuture(failure.cause);
+		CompletableFuture<Room> created = new CompletableFuture<>();
+		CompletableFuture<Room> future = loading.putIfAbsent(key, created);
+		if(future!=null)
+			return future;
+		//This load sees every change made so far
+		stale.remove(key);
+		ChatTransport.forSite(site).postAsync(Room.getThumbsUrl(site, roomid), "")
+			.whenComplete((response, e)->{
+				loading.remove(key, created);
+				if(e!=null){
+					System.out.println("Failed to load "+site+" room "+roomid);
+					failures.put(key, new Failure(e));
+					created.completeExceptionally(e);
+					return;
+				}
+				try{
+					//Parsed on its own first, so a response that cannot be parsed changes nothing
+					Room loaded = new Room(site, roomid, response);
+					Room room = rooms.putIfAbsent(key, loaded);
+					if(room==null)
+						room = loaded;
+					else
+						room.copyFrom(loaded);
+					failures.remove(key);
+					created.complete(room);
+				}
+				catch(RuntimeException re){
+					System.out.println("Failed to read "+site+" room "+roomid);
+					failures.put(key, new Failure(re));
+					created.completeExceptionally(re);
+				}
+				if(stale.contains(key))
+					//Invalidated while this load was running
+					load(site, roomid);
+			});
+		return created;
+	}
+}
@@ -1,13 +1,13 @@
 package chat.users;
 
 import chat.ChatSite;
+import chat.io.ChatTransport;
 import utils.Utils;
 import utils.json.JsonObject;
 import static utils.Utils.getBooleanValueJSON;
 import static utils.Utils.getNumValueJSON;
 import static utils.Utils.getStringValueJSON;
 import static utils.Utils.unescapeHtml;
-import static utils.WebRequest.GET;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -46,6 +46,8 @@ public class ChatUser extends JsonObject<ChatUser>
 	private long last_seen;
 	/**The HTML for the user's activity column spark line chart.*/
 	private String usage;
+	/**Whether {@link #user_message} and {@link #usage} were loaded.*/
+	private volatile boolean thumbsLoaded;
 	/**The corresponding chat site.*/
 	private final ChatSite CHATSITE;
 	
@@ -55,7 +57,7 @@ public class ChatUser extends JsonObject<ChatUser>
 		String rawjson;
 		try
 		{
-			rawjson = GET("https://"+CHATSITE.getUrl()+"/users/thumbs/"+
+			rawjson = ChatTransport.forSite(CHATSITE).GET("https://"+CHATSITE.getUrl()+"/users/thumbs/"+
 					userid+"?showUsage=true"+
 							"&_="+Utils.getUnixTimeMillis());
 		}
@@ -119,15 +121,47 @@ public class ChatUser extends JsonObject<ChatUser>
 		is_owner=getBooleanValueJSON("is_owner", rawjson);
 		last_post=getNumValueJSON("last_post", rawjson);
 		last_seen=getNumValueJSON("last_seen", rawjson);
+		if(rawjson.contains("\"user_message\"")){
+			//A response of /users/thumbs, which has everything
+			user_message = getOptionalString("user_message", rawjson);
+			usage = getOptionalString("usage", rawjson);
+			thumbsLoaded = true;
+		}
+		else
+			thumbsLoaded = false;
+	}
+	/**
+	 * Gets a string that may be missing or <code>null</code>, as the about text
+	 * of a user who has none is.
+	 * @return The string, or <code>null</code>.
+	 */
+	private static String getOptionalString(String key, String rawjson)
+	{
+		try{
+			return getStringValueJSON(key, rawjson);
+		}
+		catch(Exception e){
+			return null;
+		}
+	}
+	/**
+	 * Loads the about text and usage, which <code>/user/info</code> does not
+	 * include, when one of them is first asked for.
+	 */
+	private void loadThumbs()
+	{
+		if(thumbsLoaded)
+			return;
 		try{
-			String response = GET("https://"+chatsite.getUrl()+"/users/thumbs/"+id);
-			user_message = getStringValueJSON("user_message", response);
-			usage = getStringValueJSON("usage", response);
+			String response = ChatTransport.forSite(CHATSITE).GET("https://"+CHATSITE.getUrl()+"/users/thumbs/"+id+"?showUsage=true");
+			user_message = getOptionalString("user_message", response);
+			usage = getOptionalString("usage", response);
 			//TODO are these required?
 			/*Chat rooms we can invite this user to*/
 			//"invite_targets":null
 			//"issues":null
 			//boolean is_registered = getBooleanValueJSON("is_registered", response);
+			thumbsLoaded = true;
 		}catch(Exception e){
 			
 		}
@@ -156,6 +190,7 @@ public class ChatUser extends JsonObject<ChatUser>
 		this.profilePictureURL = profilePictureURL;
 	}
 	public String getUserMessage(){
+		loadThumbs();
 		return user_message;
 	}
 	public void setUserMessage(String userMessage){
@@ -180,6 +215,7 @@ public class ChatUser extends JsonObject<ChatUser>
 		return last_seen;
 	}
 	public String getUsage(){
+		loadThumbs();
 		return usage;
 	}
 	public ChatSite getChatSite(){
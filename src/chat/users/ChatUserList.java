@@ -3,6 +3,8 @@ package chat.users;
 import java.util.List;
 import chat.ChatSite;
 import utils.json.JsonList;
+import utils.json.JsonReader;
+import utils.json.JsonReader.Token;
 
 public class ChatUserList extends JsonList<ChatUser>
 {
@@ -22,14 +24,48 @@ public class ChatUserList extends JsonList<ChatUser>
 		}
 		this.sort(null);
 	}
+	/**
+	 * @param rawuserarrayjson A JSON array of users, or a response of
+	 * <code>/user/info</code>, which holds the array in <code>"users"</code>.
+	 */
 	public ChatUserList(String rawuserarrayjson, ChatSite chatsite)
 	{
 		super();
-		String[] userinfos = rawuserarrayjson.split("\\},\\{(?=\"id\")");
-		for(int i=0; i<userinfos.length; ++i)
-			this.add(new ChatUser(userinfos[i], chatsite));
+		try{
+			JsonReader reader = new JsonReader(rawuserarrayjson);
+			if(reader.peek()==Token.BEGIN_OBJECT){
+				reader.beginObject();
+				while(reader.hasNext()){
+					if(reader.nextName().equals("users") && reader.peek()==Token.BEGIN_ARRAY)
+						readUsers(reader, chatsite);
+					else
+						reader.skipValue();
+				}
+				reader.endObject();
+			}
+			else
+				readUsers(reader, chatsite);
+		}
+		catch(IllegalArgumentException e){
+			//Not valid JSON, split it the old way
+			this.clear();
+			String[] userinfos = rawuserarrayjson.split("\\},\\{(?=\"id\")");
+			for(int i=0; i<userinfos.length; ++i)
+				this.add(new ChatUser(userinfos[i], chatsite));
+		}
 		this.sort(null);
 	}
+	private void readUsers(JsonReader reader, ChatSite chatsite)
+	{
+		reader.beginArray();
+		while(reader.hasNext()){
+			reader.peek();
+			int start = reader.position();
+			reader.skipValue();
+			this.add(new ChatUser(reader.slice(start, reader.position()), chatsite));
+		}
+		reader.endArray();
+	}
 	
 	public ChatUserList getModerators(){
 		ChatUserList filteredlist = new ChatUserList();
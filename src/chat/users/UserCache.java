@@ -0,0 +1,173 @@
+package chat.users;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import chat.ChatSite;
+import chat.io.ChatIO;
+import chat.io.ChatTransport;
+import static utils.Utils.urlencode;
+
+/**
+ * Caches chat users per site.<br>
+ * Entries expire after {@link #ttlMillis} and the least recently used ones
+ * are dropped beyond {@link #maxEntries}. All users missing from one lookup
+ * are fetched with a single <code>/user/info</code> request, and a lookup
+ * for a user that is already being fetched waits for that request instead
+ * of starting another.
+ */
+public final class UserCache
+{
+	private UserCache(){}
+
+	private static final long ttlMillis = 10*60*1000;
+	private static final int maxEntries = 4096;
+	/**A cached user and when it was loaded.*/
+	private static final class Entry
+	{
+		final ChatUser user;
+		final long loadedMillis;
+		Entry(ChatUser user, long loadedMillis)
+		{
+			this.user=user;
+			this.loadedMillis=loadedMillis;
+		}
+	}
+	private static final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(16, .75f, true){
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest){
+			return size()>maxEntries;
+		}
+	};
+	private static final Map<String, CompletableFuture<ChatUser>> inflight = new ConcurrentHashMap<>();
+
+	private static String key(ChatSite site, long userid)
+	{
+		return site.name()+'/'+userid;
+	}
+	/**
+	 * Gets a user, fetching it if it is not cached.
+	 * @throws IOException if the user could not be fetched.
+	 */
+	public static ChatUser get(ChatSite site, long userid) throws IOException
+	{
+		return getAll(site, 0, userid).get(0);
+	}
+	/**
+	 * Gets users, fetching the ones that are not cached in one request.
+	 * @param roomid The room the users are looked up for, or 0
+	 * @return The users, sorted by id.
+	 * @throws IOException if a user could not be fetched.
+	 */
+	public static ChatUserList getAll(ChatSite site, long roomid, Long... userids) throws IOException
+	{
+		try{
+			return getAllAsync(site, roomid, userids).get();
+		}
+		catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			throw new IOException("Failed to get users from "+site, cause);
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while getting users from "+site);
+		}
+	}
+	/**
+	 * Like {@link #getAll(ChatSite, long, Long...)}, but does not wait for the request.
+	 */
+	public static CompletableFuture<ChatUserList> getAllAsync(ChatSite site, long roomid, Long... userids)
+	{
+		long now = System.currentTimeMillis();
+		List<CompletableFuture<ChatUser>> futures = new ArrayList<>(userids.length);
+		Map<Long, CompletableFuture<ChatUser>> misses = new LinkedHashMap<>();
+		for(long userid : userids){
+			String key = key(site, userid);
+			Entry entry;
+			synchronized(cache){
+				entry = cache.get(key);
+			}
+			if(entry!=null && now-entry.loadedMillis<=ttlMillis){
+				futures.add(CompletableFuture.completedFuture(entry.user));
+				continue;
+			}
+			CompletableFuture<ChatUser> created = new CompletableFuture<>();
+			CompletableFuture<ChatUser> future = inflight.putIfAbsent(key, created);
+			if(future==null){
+				future = created;
+				misses.put(userid, created);
+			}
+			futures.add(future);
+		}
+		if(!misses.isEmpty())
+			fetch(site, roomid, misses);
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply((v)->{
+			ChatUserList users = new ChatUserList();
+			for(CompletableFuture<ChatUser> future : futures)
+				users.add(future.join());
+			users.sort(null);
+			return users;
+		});
+	}
+	private static void fetch(ChatSite site, long roomid, Map<Long, CompletableFuture<ChatUser>> misses)
+	{
+		StringBuilder ids = new StringBuilder();
+		for(long userid : misses.keySet())
+			ids.append(ids.length()>0 ? "," : "").append(userid);
+		String[][] form = roomid>0
+				? new String[][]{{"ids", ids.toString()}, {"roomId", ""+roomid}}
+				: new String[][]{{"ids", ids.toString()}};
+		ChatTransport.forSite(site).postAsync(ChatIO.getProtocol()+"://"+site.getUrl()+"/user/info", urlencode(form))
+			.thenApply((response)->new ChatUserList(response, site))
+			.whenComplete((users, e)->{
+				long now = System.currentTimeMillis();
+				Map<Long, ChatUser> byid = new HashMap<>();
+				if(users!=null)
+					for(ChatUser user : users)
+						byid.put(user.getId(), user);
+				for(Map.Entry<Long, CompletableFuture<ChatUser>> miss : misses.entrySet()){
+					String key = key(site, miss.getKey());
+					ChatUser user = byid.get(miss.getKey());
+					if(user!=null){
+						synchronized(cache){
+							cache.put(key, new Entry(user, now));
+						}
+						miss.getValue().complete(user);
+					}
+					else if(e!=null)
+						miss.getValue().completeExceptionally(e);
+					else
+						miss.getValue().completeExceptionally(new IOException("No user "+miss.getKey()+" on "+site));
+					inflight.remove(key, miss.getValue());
+				}
+			});
+	}
+	/**
+	 * Adds or replaces a user, such as one just loaded by its constructor.
+	 */
+	public static void put(ChatUser user)
+	{
+		synchronized(cache){
+			cache.put(key(user.getChatSite(), user.getId()), new Entry(user, System.currentTimeMillis()));
+		}
+	}
+	/**
+	 * Drops a user, so the next lookup fetches it again.
+	 */
+	public static void invalidate(ChatSite site, long userid)
+	{
+		synchronized(cache){
+			cache.remove(key(site, userid));
+		}
+	}
+}
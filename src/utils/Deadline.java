@@ -0,0 +1,120 @@
+package utils;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * A point in time after which a task should stop, scheduled on a
+ * {@link DeadlineScheduler}.<br>
+ * A task {@link #attach() attaches} the deadline to its thread. When the
+ * deadline expires, that thread is interrupted, and code that does not block
+ * can check {@link #current()} instead; either way the task is expected to
+ * stop by itself. Nothing is stopped forcibly.
+ */
+public final class Deadline
+{
+	private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+	/**A deadline that never expires.*/
+	public static final Deadline NONE = new Deadline(null, Long.MAX_VALUE, null);
+
+	private final DeadlineScheduler scheduler;
+	final long deadlineNanos;
+	final Runnable action;
+	private int state = PENDING;
+	private Thread owner;
+	/**The number of times the wheel has to turn before this expires; used by the scheduler.*/
+	long rounds;
+
+	Deadline(DeadlineScheduler scheduler, long deadlineNanos, Runnable action)
+	{
+		this.scheduler=scheduler;
+		this.deadlineNanos=deadlineNanos;
+		this.action=action;
+	}
+	/**
+	 * The deadline attached to the current thread, or {@link #NONE}.
+	 */
+	public static Deadline current()
+	{
+		Deadline deadline = current.get();
+		return deadline==null ? NONE : deadline;
+	}
+	/**
+	 * Makes this the current thread's deadline, so it is interrupted when this expires.
+	 */
+	public synchronized void attach()
+	{
+		current.set(this);
+		owner = Thread.currentThread();
+		if(state==EXPIRED)
+			owner.interrupt();
+	}
+	/**
+	 * Detaches this deadline from the current thread. Once this returns the
+	 * thread is no longer interrupted by it, and any interrupt it already
+	 * caused is cleared.
+	 */
+	public void detach()
+	{
+		synchronized(this){
+			if(owner==Thread.currentThread())
+				owner = null;
+		}
+		if(current.get()==this)
+			current.remove();
+		if(isExpired())
+			Thread.interrupted();
+	}
+	/**
+	 * Cancels this deadline, so it never expires.
+	 * @return {@code false} if it had already expired.
+	 */
+	public boolean cancel()
+	{
+		synchronized(this){
+			if(state!=PENDING)
+				return state==CANCELLED;
+			state = CANCELLED;
+		}
+		if(scheduler!=null)
+			scheduler.onCancelled();
+		return true;
+	}
+	/**Called by the scheduler when this deadline is reached.*/
+	boolean expire()
+	{
+		synchronized(this){
+			if(state!=PENDING)
+				return false;
+			state = EXPIRED;
+			if(owner!=null)
+				owner.interrupt();
+		}
+		return true;
+	}
+	synchronized boolean isCancelled()
+	{
+		return state==CANCELLED;
+	}
+	public synchronized boolean isExpired()
+	{
+		return state==EXPIRED;
+	}
+	/**
+	 * The time left, in milliseconds; 0 once expired.
+	 */
+	public long getRemaining()
+	{
+		if(this==NONE)
+			return Long.MAX_VALUE;
+		return isExpired() ? 0 : Math.max(0, (deadlineNanos-System.nanoTime())/1000000);
+	}
+	/**
+	 * @throws CancellationException if this deadline has expired.
+	 */
+	public void throwIfExpired() throws CancellationException
+	{
+		if(isExpired())
+			throw new CancellationException("Deadline expired");
+	}
+}
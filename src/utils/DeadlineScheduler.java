@@ -0,0 +1,169 @@
+package utils;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Expires {@link Deadline}s on a single thread, using a hashed timing wheel.<br>
+ * Time is divided into ticks; every deadline is put in the slot of the tick it
+ * falls into, and each tick only the deadlines of one slot are looked at, so
+ * scheduling and cancelling are constant-time however many deadlines are
+ * pending. Deadlines expire up to one tick late. Expiry actions run on the
+ * scheduler's thread and must be short.
+ */
+public final class DeadlineScheduler
+{
+	private static final long defaultTickMillis = 100;
+	private static final int defaultWheelSize = 512;
+	private static final DeadlineScheduler shared = new DeadlineScheduler("Deadlines", defaultTickMillis, defaultWheelSize);
+
+	private final String name;
+	private final long tickNanos;
+	private final int mask;
+	private final ArrayDeque<Deadline>[] wheel;
+	/**Deadlines scheduled since the last tick, moved into the wheel by the worker.*/
+	private final ConcurrentLinkedQueue<Deadline> incoming = new ConcurrentLinkedQueue<>();
+	private final long startNanos = System.nanoTime();
+	private long tick = 0;
+	private Thread worker;
+	private final AtomicLong scheduled = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+
+	/**
+	 * @param name The name of the scheduler's thread
+	 * @param tickMillis The length of a tick, in milliseconds
+	 * @param wheelSize The number of slots; rounded up to a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	public DeadlineScheduler(String name, long tickMillis, int wheelSize)
+	{
+		if(tickMillis<1 || wheelSize<1)
+			throw new IllegalArgumentException("Invalid deadline scheduler configuration.");
+		int n = Integer.highestOneBit(wheelSize);
+		if(n<wheelSize)
+			n<<=1;
+		this.name=name;
+		this.tickNanos=tickMillis*1000000;
+		this.mask=n-1;
+		this.wheel=(ArrayDeque<Deadline>[])new ArrayDeque<?>[n];
+		for(int i=0;i<n;++i)
+			wheel[i]=new ArrayDeque<>();
+	}
+	/**
+	 * The scheduler shared by the whole bot.
+	 */
+	public static DeadlineScheduler getShared()
+	{
+		return shared;
+	}
+	/**
+	 * Schedules a deadline.
+	 * @param delayMillis The time until the deadline expires, in milliseconds
+	 * @param action Run on the scheduler's thread when the deadline expires, or {@code null}
+	 */
+	public Deadline schedule(long delayMillis, Runnable action)
+	{
+		Deadline deadline = new Deadline(this, System.nanoTime()+Math.max(0, delayMillis)*1000000, action);
+		scheduled.incrementAndGet();
+		incoming.add(deadline);
+		synchronized(this){
+			if(worker==null){
+				worker = new Thread(this::run, name);
+				worker.setDaemon(true);
+				worker.start();
+			}
+		}
+		return deadline;
+	}
+	void onCancelled()
+	{
+		cancelled.incrementAndGet();
+	}
+	private void run()
+	{
+		while(true){
+			long next = startNanos+(tick+1)*tickNanos;
+			long sleep;
+			while((sleep = next-System.nanoTime())>0){
+				try{
+					Thread.sleep(sleep/1000000, (int)(sleep%1000000));
+				}
+				catch(InterruptedException e){
+					e.printStackTrace();
+				}
+			}
+			transferIncoming();
+			expireSlot(wheel[(int)(tick&mask)]);
+			++tick;
+		}
+	}
+	private void transferIncoming()
+	{
+		Deadline deadline;
+		while((deadline = incoming.poll())!=null){
+			if(deadline.isCancelled())
+				continue;
+			long ticks = Math.max(tick, (deadline.deadlineNanos-startNanos+tickNanos-1)/tickNanos-1);
+			deadline.rounds = (ticks-tick)/wheel.length;
+			wheel[(int)(ticks&mask)].add(deadline);
+		}
+	}
+	private void expireSlot(ArrayDeque<Deadline> slot)
+	{
+		for(Iterator<Deadline> it = slot.iterator(); it.hasNext();){
+			Deadline deadline = it.next();
+			if(deadline.isCancelled()){
+				it.remove();
+				continue;
+			}
+			if(deadline.rounds>0){
+				--deadline.rounds;
+				continue;
+			}
+			it.remove();
+			if(!deadline.expire())
+				continue;
+			expired.incrementAndGet();
+			if(deadline.action!=null){
+				try{
+					deadline.action.run();
+				}
+				catch(RuntimeException e){
+					System.err.println("Deadline action failed");
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	/**
+	 * The number of deadlines scheduled.
+	 */
+	public long getScheduledCount()
+	{
+		return scheduled.get();
+	}
+	/**
+	 * The number of deadlines cancelled before they expired.
+	 */
+	public long getCancelledCount()
+	{
+		return cancelled.get();
+	}
+	/**
+	 * The number of deadlines that expired.
+	 */
+	public long getExpiredCount()
+	{
+		return expired.get();
+	}
+	/**
+	 * The number of deadlines that neither expired nor were cancelled yet.
+	 */
+	public long getPendingCount()
+	{
+		return scheduled.get()-cancelled.get()-expired.get();
+	}
+}
@@ -0,0 +1,170 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * A set of {@code long} values that forgets values after a fixed time.<br>
+ * Time is divided into buckets, arranged in a wheel; a value is stored in the
+ * bucket of the time it was added, and a whole bucket is dropped once the
+ * wheel comes around to it again. Values are spread over independently locked
+ * stripes, so threads adding different values rarely contend. Lookups and
+ * insertions look at one stripe of every bucket, which is a constant amount
+ * of work.
+ */
+public final class ExpiringLongSet
+{
+	private final long bucketMillis;
+	private final int wheelSize;
+	private final int stripeMask;
+	private final Object[] locks;
+	/**The values, indexed by bucket and stripe. Allocated on first use.*/
+	private final LongHashSet[][] sets;
+	/**The tick each bucket/stripe was last filled in, indexed like {@link #sets}.*/
+	private final long[][] ticks;
+	/**
+	 * @param maxAgeMillis The minimum time a value is remembered, in milliseconds
+	 * @param bucketMillis The time span of one bucket, in milliseconds
+	 * @param stripes The number of independently locked stripes; rounded up to a power of two
+	 */
+	public ExpiringLongSet(long maxAgeMillis, long bucketMillis, int stripes)
+	{
+		if(maxAgeMillis<1 || bucketMillis<1 || stripes<1)
+			throw new IllegalArgumentException("Invalid expiring set configuration.");
+		this.bucketMillis=bucketMillis;
+		this.wheelSize=(int)((maxAgeMillis+bucketMillis-1)/bucketMillis)+1;
+		int n = Integer.highestOneBit(stripes);
+		if(n<stripes)
+			n<<=1;
+		this.stripeMask=n-1;
+		this.locks=new Object[n];
+		for(int i=0;i<n;++i)
+			locks[i]=new Object();
+		this.sets=new LongHashSet[wheelSize][n];
+		this.ticks=new long[wheelSize][n];
+		for(long[] row : ticks)
+			Arrays.fill(row, Long.MIN_VALUE);
+	}
+	private int stripe(long value)
+	{
+		long h = value*0x9E3779B97F4A7C15L;
+		return (int)(h>>>40)&stripeMask;
+	}
+	private boolean isLive(long tick, long filledtick)
+	{
+		return filledtick!=Long.MIN_VALUE && tick-filledtick<wheelSize;
+	}
+	/**
+	 * Adds a value unless it is already present.
+	 * @param value The value to add
+	 * @param nowMillis The current time, in milliseconds
+	 * @return {@code true} if the value was added, {@code false} if it was already present.
+	 */
+	public boolean add(long value, long nowMillis)
+	{
+		long tick = Math.floorDiv(nowMillis, bucketMillis);
+		int s = stripe(value);
+		synchronized(locks[s]){
+			for(int b=0;b<wheelSize;++b)
+				if(isLive(tick, ticks[b][s]) && sets[b][s].contains(value))
+					return false;
+			int current = (int)Math.floorMod(tick, (long)wheelSize);
+			LongHashSet set = sets[current][s];
+			if(set==null)
+				set = sets[current][s] = new LongHashSet();
+			if(ticks[current][s]!=tick){
+				set.clear();
+				ticks[current][s]=tick;
+			}
+			set.add(value);
+			return true;
+		}
+	}
+	/**
+	 * @param value The value to look up
+	 * @param nowMillis The current time, in milliseconds
+	 * @return {@code true} iff the value was added and has not expired yet.
+	 */
+	public boolean contains(long value, long nowMillis)
+	{
+		long tick = Math.floorDiv(nowMillis, bucketMillis);
+		int s = stripe(value);
+		synchronized(locks[s]){
+			for(int b=0;b<wheelSize;++b)
+				if(isLive(tick, ticks[b][s]) && sets[b][s].contains(value))
+					return true;
+			return false;
+		}
+	}
+
+	/**An open-addressing hash set of {@code long} values.*/
+	private static final class LongHashSet
+	{
+		private static final int initialCapacity = 16;
+		/**Marks an empty slot; the value itself is tracked by {@link #hasEmptyValue}.*/
+		private static final long EMPTY = 0;
+		private long[] slots = new long[initialCapacity];
+		private int size;
+		private boolean hasEmptyValue;
+		private static int mix(long value)
+		{
+			long h = value*0x9E3779B97F4A7C15L;
+			return (int)(h^(h>>>32));
+		}
+		boolean contains(long value)
+		{
+			if(value==EMPTY)
+				return hasEmptyValue;
+			int mask = slots.length-1;
+			for(int i=mix(value)&mask;;i=(i+1)&mask){
+				long slot = slots[i];
+				if(slot==value)
+					return true;
+				if(slot==EMPTY)
+					return false;
+			}
+		}
+		void add(long value)
+		{
+			if(value==EMPTY){
+				hasEmptyValue=true;
+				return;
+			}
+			if((size+1)*4>slots.length*3)
+				grow();
+			int mask = slots.length-1;
+			for(int i=mix(value)&mask;;i=(i+1)&mask){
+				long slot = slots[i];
+				if(slot==value)
+					return;
+				if(slot==EMPTY){
+					slots[i]=value;
+					++size;
+					return;
+				}
+			}
+		}
+		private void grow()
+		{
+			long[] old = slots;
+			slots = new long[old.length*2];
+			int mask = slots.length-1;
+			for(long value : old)
+				if(value!=EMPTY){
+					int i = mix(value)&mask;
+					while(slots[i]!=EMPTY)
+						i=(i+1)&mask;
+					slots[i]=value;
+				}
+		}
+		/**Drops all values, keeping a small table.*/
+		void clear()
+		{
+			if(slots.length>initialCapacity)
+				slots = new long[initialCapacity];
+			else
+				Arrays.fill(slots, EMPTY);
+			size=0;
+			hasEmptyValue=false;
+		}
+	}
+}
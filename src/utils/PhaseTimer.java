@@ -0,0 +1,52 @@
+package utils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures how long the consecutive phases of a task take, such as startup.<br>
+ * Every call to {@link #mark(String)} ends the current phase and starts the next.
+ */
+public final class PhaseTimer
+{
+	private final long start = System.nanoTime();
+	private long last = start;
+	private final Map<String, Long> phases = new LinkedHashMap<>();
+
+	/**
+	 * Ends the current phase.
+	 * @param phase The name of the phase that just ended
+	 * @return The duration of the phase, in milliseconds.
+	 */
+	public synchronized long mark(String phase)
+	{
+		long now = System.nanoTime();
+		long millis = (now-last)/1000000;
+		phases.merge(phase, millis, Long::sum);
+		last = now;
+		return millis;
+	}
+	/**
+	 * The duration of every phase that ended, in milliseconds, in the order they ended.
+	 */
+	public synchronized Map<String, Long> getPhases()
+	{
+		return Collections.unmodifiableMap(new LinkedHashMap<>(phases));
+	}
+	/**
+	 * The time since this timer was created, in milliseconds.
+	 */
+	public long getTotal()
+	{
+		return (System.nanoTime()-start)/1000000;
+	}
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String, Long> phase : phases.entrySet())
+			sb.append(phase.getKey()).append(' ').append(phase.getValue()).append(" ms, ");
+		return sb.append("total ").append(getTotal()).append(" ms").toString();
+	}
+}
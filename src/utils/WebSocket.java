@@ -1,114 +1,678 @@
 package utils;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
 
-//TODO: figure out why this doesn't work
-public class WebSocket extends Socket
+/**
+ * A WebSocket client (RFC 6455) on top of a {@link SocketChannel}.<br>
+ * <code>wss</code> URIs are wrapped in TLS with an {@link SSLEngine}. Incoming
+ * frames are read on a dedicated thread; pings are answered automatically and
+ * a ping is sent whenever the connection has been quiet for
+ * {@link #pingIntervalMillis}. If automatic reconnection is enabled, a dropped
+ * connection is re-established with exponential backoff, using the URI
+ * returned by {@link #getReconnectUri()}.
+ */
+public class WebSocket
 {
-	private BufferedWriter dataWriter;
-	private BufferedReader dataReader;
-	private Thread inputthread;
+	private static final String acceptGuid = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final int OP_CONTINUATION = 0x0,
+			OP_TEXT = 0x1,
+			OP_BINARY = 0x2,
+			OP_CLOSE = 0x8,
+			OP_PING = 0x9,
+			OP_PONG = 0xA;
+	/**Close code for a normal closure.*/
+	public static final int CLOSE_NORMAL = 1000;
+	/**Close code reported when the connection dropped without a close frame.*/
+	public static final int CLOSE_ABNORMAL = 1006;
+	private static final int maxMessageSize = 16*1024*1024;
+	private static final long pingIntervalMillis = 30000;
+	private static final long minReconnectDelay = 1000;
+	private static final long maxReconnectDelay = 60000;
+	private static final SecureRandom random = new SecureRandom();
+	private static final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor((r)->{
+		Thread t = new Thread(r, "WebSocket-Heartbeat");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private volatile URI uri;
+	private final String[][] headers;
+	private final Object writeLock = new Object();
+	private volatile Transport transport;
+	/**Received bytes that have not been decoded yet, in read mode.*/
+	private ByteBuffer inbuf = ByteBuffer.allocate(8192);
 	private volatile boolean closed = false;
-	private Runnable handleIncomingData = ()->{
-		String line;
-		while(!closed) {
-			try
-			{
-				while(!this.isInputShutdown()){
-					synchronized(WebSocket.this) {
-						if((line=dataReader.readLine())==null)
-							break;
-					}
-					//TODO add an actual data handler
-					System.out.println(line);
-				}
+	private volatile boolean autoReconnect = false;
+	private volatile long lastReceived;
+	private volatile int closeCode = CLOSE_ABNORMAL;
+	private volatile String closeReason = "";
+	private ScheduledFuture<?> heartbeatTask;
+	private Thread inputthread;
+
+	public WebSocket(String socketuri) throws URISyntaxException{
+		this(new URI(socketuri));
+	}
+	public WebSocket(URI uri)
+	{
+		this(uri, new String[0][]);
+	}
+	/**
+	 * @param uri A <code>ws</code> or <code>wss</code> URI
+	 * @param headers Extra headers for the opening handshake, such as <code>Origin</code>
+	 */
+	public WebSocket(URI uri, String[][] headers)
+	{
+		getPort(uri);
+		this.uri=uri;
+		this.headers=headers;
+	}
+	/**
+	 * Opens the connection and starts reading incoming messages.
+	 * @throws IOException if the connection or the opening handshake fails.
+	 */
+	public synchronized void connect() throws IOException
+	{
+		if(inputthread!=null)
+			throw new IllegalStateException("Already connected to "+uri);
+		open(uri);
+		inputthread = new Thread(this::readLoop, "WebSocket-"+uri.getHost());
+		inputthread.setDaemon(true);
+		inputthread.start();
+	}
+	/**
+	 * Enables or disables reconnecting after the connection drops.
+	 */
+	public void setAutoReconnect(boolean autoReconnect)
+	{
+		this.autoReconnect=autoReconnect;
+	}
+	public boolean isOpen()
+	{
+		return transport!=null && !closed;
+	}
+	public URI getUri()
+	{
+		return uri;
+	}
+	/**
+	 * Sends a text message.
+	 */
+	public void send(String data) throws IOException {
+		sendFrame(OP_TEXT, data.getBytes(StandardCharsets.UTF_8));
+	}
+	/**
+	 * Sends a close frame and stops reading. The connection is not re-established.
+	 */
+	public void close() throws IOException {
+		if(closed)
+			return;
+		closed=true;
+		try{
+			if(transport!=null)
+				sendFrame(OP_CLOSE, new byte[]{(byte)(CLOSE_NORMAL>>8), (byte)CLOSE_NORMAL});
+		}
+		catch(IOException e){
+			//The connection is being dropped anyway
+		}
+		finally{
+			disconnect();
+			synchronized(this){
+				if(inputthread!=null)
+					inputthread.interrupt();
 			}
-			catch (IOException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		}
+	}
+
+	/**Called after the opening handshake succeeded, including after a reconnect.*/
+	protected void onOpen()
+	{
+		System.out.println("Connected to "+uri.getHost());
+	}
+	/**Called for every complete text message.*/
+	protected void onMessage(String message)
+	{
+	}
+	/**Called when the connection has ended, whether or not it will be re-established.*/
+	protected void onClose(int code, String reason)
+	{
+		System.out.println("Disconnected from "+uri.getHost()+" ("+code+(reason.isEmpty()?"":" "+reason)+")");
+	}
+	protected void onError(Exception e)
+	{
+		e.printStackTrace();
+	}
+	/**
+	 * The URI to connect to when reconnecting. Returns the current URI by default.
+	 * @throws IOException if no URI could be obtained; the reconnect is retried later.
+	 */
+	protected URI getReconnectUri() throws IOException
+	{
+		return uri;
+	}
+
+	private void open(URI target) throws IOException
+	{
+		int port = getPort(target);
+		SocketChannel channel = SocketChannel.open();
+		try{
+			channel.socket().setKeepAlive(true);
+			channel.socket().setTcpNoDelay(true);
+			channel.connect(new InetSocketAddress(target.getHost(), port));
+			Transport t = "wss".equalsIgnoreCase(target.getScheme())
+					? new TlsTransport(channel, target.getHost(), port)
+					: new PlainTransport(channel);
+			inbuf.clear().flip();
+			handshake(t, target, port);
+			uri = target;
+			closeCode = CLOSE_ABNORMAL;
+			closeReason = "";
+			lastReceived = System.currentTimeMillis();
+			transport = t;
+		}
+		catch(IOException | RuntimeException e){
+			channel.close();
+			throw e;
+		}
+		synchronized(this){
+			heartbeatTask = heartbeat.scheduleWithFixedDelay(this::checkAlive,
+					pingIntervalMillis, pingIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+		onOpen();
+	}
+	private void disconnect()
+	{
+		synchronized(this){
+			if(heartbeatTask!=null)
+				heartbeatTask.cancel(false);
+			heartbeatTask=null;
+		}
+		Transport t = transport;
+		transport = null;
+		if(t!=null)
+			try{
+				t.close();
 			}
-			try
-			{
-				System.out.print('.');
-				Thread.sleep(100);
+			catch(IOException e){
+				//Already broken
 			}
-			catch (InterruptedException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+	}
+	/**Sends a ping when the connection is quiet and drops it when it stays quiet.*/
+	private void checkAlive()
+	{
+		long quiet = System.currentTimeMillis()-lastReceived;
+		try{
+			if(quiet>2*pingIntervalMillis)
+				disconnect();
+			else if(quiet>=pingIntervalMillis)
+				sendFrame(OP_PING, new byte[0]);
+		}
+		catch(IOException e){
+			disconnect();
+		}
+	}
+	private void readLoop()
+	{
+		long delay = minReconnectDelay;
+		while(!closed){
+			try{
+				readFrames();
+			}
+			catch(IOException e){
+				if(!closed && transport!=null)
+					onError(e);
+			}
+			disconnect();
+			onClose(closeCode, closeReason);
+			if(!autoReconnect)
+				break;
+			while(!closed){
+				try{
+					Thread.sleep(delay+random.nextInt((int)(delay/2)+1));
+				}
+				catch(InterruptedException ie){
+					closed=true;
+					break;
+				}
+				delay = Math.min(delay*2, maxReconnectDelay);
+				try{
+					open(getReconnectUri());
+					delay = minReconnectDelay;
+					break;
+				}
+				catch(IOException e){
+					onError(e);
+				}
 			}
 		}
-	};
-	public WebSocket(String socketuri) throws URISyntaxException, UnknownHostException, IOException{
-		this(new URI(socketuri));
+		closed=true;
 	}
-	public WebSocket(URI uri) throws UnknownHostException, IOException
+
+	/*Opening handshake*/
+	private void handshake(Transport t, URI target, int port) throws IOException
 	{
-		this(uri, getPort(uri));
+		byte[] nonce = new byte[16];
+		random.nextBytes(nonce);
+		String key = Base64.getEncoder().encodeToString(nonce);
+		String path = target.getRawPath()==null || target.getRawPath().isEmpty() ? "/" : target.getRawPath();
+		if(target.getRawQuery()!=null)
+			path += "?"+target.getRawQuery();
+		boolean defaultport = port==("wss".equalsIgnoreCase(target.getScheme())?443:80);
+		StringBuilder request = new StringBuilder();
+		request.append("GET ").append(path).append(" HTTP/1.1\r\n")
+			.append("Host: ").append(target.getHost()).append(defaultport?"":":"+port).append("\r\n")
+			.append("Upgrade: websocket\r\n")
+			.append("Connection: Upgrade\r\n")
+			.append("Sec-WebSocket-Key: ").append(key).append("\r\n")
+			.append("Sec-WebSocket-Version: 13\r\n");
+		for(String[] header : headers)
+			request.append(header[0]).append(": ").append(header[1]).append("\r\n");
+		request.append("\r\n");
+		t.write(ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.ISO_8859_1)));
+
+		String response = readHttpHeader(t);
+		String[] lines = response.split("\r\n");
+		if(!lines[0].matches("HTTP/1\\.[01] 101\\b.*"))
+			throw new ProtocolException("WebSocket upgrade refused by "+target.getHost()+": "+lines[0]);
+		String expected = acceptKey(key);
+		for(String line : lines){
+			int colon = line.indexOf(':');
+			if(colon>0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept")){
+				if(!line.substring(colon+1).trim().equals(expected))
+					throw new ProtocolException("Invalid Sec-WebSocket-Accept from "+target.getHost());
+				return;
+			}
+		}
+		throw new ProtocolException("Missing Sec-WebSocket-Accept from "+target.getHost());
 	}
-	public WebSocket(String socketuri, int port) throws URISyntaxException, UnknownHostException, IOException{
-		this(new URI(socketuri), port);
+	/**Reads up to the blank line that ends the response header; later bytes stay in {@link #inbuf}.*/
+	private String readHttpHeader(Transport t) throws IOException
+	{
+		while(true){
+			for(int i=inbuf.position()+3; i<inbuf.limit(); ++i)
+				if(inbuf.get(i)=='\n' && inbuf.get(i-1)=='\r' && inbuf.get(i-2)=='\n' && inbuf.get(i-3)=='\r'){
+					byte[] header = new byte[i+1-inbuf.position()];
+					inbuf.get(header);
+					return new String(header, StandardCharsets.ISO_8859_1);
+				}
+			if(inbuf.remaining()>=65536)
+				throw new ProtocolException("HTTP response header too large");
+			fill(t, inbuf.remaining()+1);
+		}
 	}
-	public WebSocket(URI uri, int port) throws UnknownHostException, IOException
+	private static String acceptKey(String key)
 	{
-		super(uri.getHost(), port);
-		this.setKeepAlive(true);
-		this.dataReader = new BufferedReader(new InputStreamReader(this.getInputStream()));
-		this.dataWriter = new BufferedWriter(new OutputStreamWriter(this.getOutputStream()));
-		this.inputthread = new Thread(this.handleIncomingData);
-		inputthread.start();
-		System.out.println("connected");
-		this.send("TEST DATA");
-		// TODO Auto-generated constructor stub
+		try{
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			byte[] digest = sha1.digest((key+acceptGuid).getBytes(StandardCharsets.ISO_8859_1));
+			return Base64.getEncoder().encodeToString(digest);
+		}
+		catch(NoSuchAlgorithmException e){
+			throw new InternalError(e);
+		}
 	}
-	public synchronized void send(String data) throws IOException {
-		dataWriter.write(data);
-		dataWriter.flush();
+
+	/*Framing*/
+	private void readFrames() throws IOException
+	{
+		ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+		int messageOpcode = -1;
+		while(!closed){
+			Transport t = transport;
+			if(t==null)
+				throw new EOFException("Connection closed");
+			fill(t, 2);
+			int b0 = inbuf.get()&0xFF, b1 = inbuf.get()&0xFF;
+			boolean fin = (b0&0x80)!=0;
+			int opcode = b0&0x0F;
+			boolean masked = (b1&0x80)!=0;
+			long length = b1&0x7F;
+			if(length==126){
+				fill(t, 2);
+				length = inbuf.getShort()&0xFFFF;
+			}
+			else if(length==127){
+				fill(t, 8);
+				length = inbuf.getLong();
+			}
+			if(length<0 || length>maxMessageSize)
+				throw new ProtocolException("Frame of "+length+" bytes exceeds the limit");
+			byte[] mask = null;
+			if(masked){
+				fill(t, 4);
+				mask = new byte[4];
+				inbuf.get(mask);
+			}
+			fill(t, (int)length);
+			byte[] payload = new byte[(int)length];
+			inbuf.get(payload);
+			if(mask!=null)
+				for(int i=0;i<payload.length;++i)
+					payload[i]^=mask[i&3];
+			lastReceived = System.currentTimeMillis();
+
+			switch(opcode){
+				case OP_CONTINUATION:
+					if(messageOpcode<0)
+						throw new ProtocolException("Unexpected continuation frame");
+					fragments.write(payload);
+					if(fragments.size()>maxMessageSize)
+						throw new ProtocolException("Message exceeds the limit");
+					if(fin){
+						deliver(messageOpcode, fragments.toByteArray());
+						fragments.reset();
+						messageOpcode = -1;
+					}
+					break;
+				case OP_TEXT:
+				case OP_BINARY:
+					if(fin)
+						deliver(opcode, payload);
+					else{
+						fragments.reset();
+						fragments.write(payload);
+						messageOpcode = opcode;
+					}
+					break;
+				case OP_CLOSE:
+					closeCode = payload.length>=2 ? ((payload[0]&0xFF)<<8)|(payload[1]&0xFF) : CLOSE_NORMAL;
+					closeReason = payload.length>2 ? new String(payload, 2, payload.length-2, StandardCharsets.UTF_8) : "";
+					try{
+						sendFrame(OP_CLOSE, java.util.Arrays.copyOf(payload, Math.min(payload.length, 2)));
+					}
+					catch(IOException e){
+						//The server may already have closed its side
+					}
+					return;
+				case OP_PING:
+					sendFrame(OP_PONG, payload);
+					break;
+				case OP_PONG:
+					break;
+				default:
+					throw new ProtocolException("Unknown opcode "+opcode);
+			}
+		}
+	}
+	private void deliver(int opcode, byte[] payload)
+	{
+		if(opcode!=OP_TEXT)
+			return;
+		try{
+			onMessage(new String(payload, StandardCharsets.UTF_8));
+		}
+		catch(RuntimeException e){
+			onError(e);
+		}
+	}
+	/**Makes sure that at least <code>n</code> undecoded bytes are in {@link #inbuf}.*/
+	private void fill(Transport t, int n) throws IOException
+	{
+		if(inbuf.remaining()>=n)
+			return;
+		inbuf.compact();
+		if(inbuf.capacity()<n){
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(n, inbuf.capacity()*2));
+			inbuf.flip();
+			larger.put(inbuf);
+			inbuf = larger;
+		}
+		while(inbuf.position()<n)
+			if(t.read(inbuf)<0){
+				inbuf.flip();
+				throw new EOFException("Connection closed by "+uri.getHost());
+			}
+		inbuf.flip();
+	}
+	/**Writes a single, masked frame.*/
+	private void sendFrame(int opcode, byte[] payload) throws IOException
+	{
+		Transport t = transport;
+		if(t==null)
+			throw new IOException("Not connected to "+uri.getHost());
+		int length = payload.length;
+		ByteBuffer frame = ByteBuffer.allocate(14+length);
+		frame.put((byte)(0x80|opcode));
+		if(length<126)
+			frame.put((byte)(0x80|length));
+		else if(length<=0xFFFF){
+			frame.put((byte)(0x80|126));
+			frame.putShort((short)length);
+		}
+		else{
+			frame.put((byte)(0x80|127));
+			frame.putLong(length);
+		}
+		byte[] mask = new byte[4];
+		random.nextBytes(mask);
+		frame.put(mask);
+		for(int i=0;i<length;++i)
+			frame.put((byte)(payload[i]^mask[i&3]));
+		frame.flip();
+		synchronized(writeLock){
+			t.write(frame);
+		}
 	}
+
 	private static int getPort(URI uri){
-		System.out.println(uri.getScheme());
-		switch(uri.getScheme()){
+		if(uri.getScheme()==null)
+			throw new IllegalArgumentException("No scheme in WebSocket URI "+uri);
+		if(uri.getPort()>=0)
+			return uri.getPort();
+		switch(uri.getScheme().toLowerCase()){
 			case "wss":
 				return 443;
 			case "ws":
 				return 80;
 			default:
-				throw new IllegalArgumentException();
+				throw new IllegalArgumentException("Unsupported WebSocket scheme \""+uri.getScheme()+"\"");
+		}
+	}
+
+	/*Transports*/
+	private static interface Transport
+	{
+		/**Reads into <code>dst</code>, blocking until at least one byte is available.
+		 * @return the number of bytes read, or -1 at the end of the stream.*/
+		public abstract int read(ByteBuffer dst) throws IOException;
+		/**Writes all of <code>src</code>.*/
+		public abstract void write(ByteBuffer src) throws IOException;
+		public abstract void close() throws IOException;
+	}
+	private static class PlainTransport implements Transport
+	{
+		private final SocketChannel channel;
+		PlainTransport(SocketChannel channel)
+		{
+			this.channel=channel;
+		}
+		public int read(ByteBuffer dst) throws IOException
+		{
+			return channel.read(dst);
+		}
+		public void write(ByteBuffer src) throws IOException
+		{
+			while(src.hasRemaining())
+				channel.write(src);
+		}
+		public void close() throws IOException
+		{
+			channel.close();
 		}
 	}
-	@Override
-	public synchronized void close() throws IOException {
-		if(!this.isInputShutdown())
-			try
-			{
-				this.shutdownInput();
+	private static class TlsTransport implements Transport
+	{
+		private final SocketChannel channel;
+		private final SSLEngine engine;
+		/**Encrypted bytes received from the channel, in read mode.*/
+		private ByteBuffer netIn;
+		/**Decrypted bytes not yet handed to the reader, in read mode.*/
+		private ByteBuffer appIn;
+		/**Encrypted bytes to be sent; only used while holding the lock on this transport's engine.*/
+		private ByteBuffer netOut;
+		TlsTransport(SocketChannel channel, String host, int port) throws IOException
+		{
+			this.channel=channel;
+			try{
+				engine = SSLContext.getDefault().createSSLEngine(host, port);
 			}
-			catch (IOException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			catch(NoSuchAlgorithmException e){
+				throw new SSLException(e);
 			}
-		if(!this.isOutputShutdown())
-			try
-			{
-				this.shutdownOutput();
+			engine.setUseClientMode(true);
+			SSLParameters params = engine.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			engine.setSSLParameters(params);
+			netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+			netIn.flip();
+			appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+			appIn.flip();
+			netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+			engine.beginHandshake();
+			while(true){
+				switch(engine.getHandshakeStatus()){
+					case NEED_WRAP:
+						wrap(ByteBuffer.allocate(0));
+						break;
+					case NEED_UNWRAP:
+					case NEED_UNWRAP_AGAIN:
+						if(unwrap()<0)
+							throw new EOFException("Connection closed during TLS handshake with "+host);
+						break;
+					case NEED_TASK:
+						runDelegatedTasks();
+						break;
+					default:
+						return;
+				}
 			}
-			catch (IOException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		}
+		private void runDelegatedTasks()
+		{
+			Runnable task;
+			while((task=engine.getDelegatedTask())!=null)
+				task.run();
+		}
+		/**Encrypts <code>src</code> and sends the result.*/
+		private void wrap(ByteBuffer src) throws IOException
+		{
+			synchronized(engine){
+				while(true){
+					netOut.clear();
+					SSLEngineResult result = engine.wrap(src, netOut);
+					if(result.getStatus()==SSLEngineResult.Status.BUFFER_OVERFLOW){
+						netOut = ByteBuffer.allocate(netOut.capacity()*2);
+						continue;
+					}
+					netOut.flip();
+					while(netOut.hasRemaining())
+						channel.write(netOut);
+					if(result.getStatus()==SSLEngineResult.Status.CLOSED){
+						if(src.hasRemaining())
+							throw new SSLException("TLS connection closed");
+						return;
+					}
+					if(result.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_TASK)
+						runDelegatedTasks();
+					if(!src.hasRemaining())
+						return;
+				}
 			}
-		if(!this.isClosed())
-			super.close();
-		closed=true;
+		}
+		/**
+		 * Decrypts the next TLS record into {@link #appIn}, reading from the channel as needed.
+		 * @return the number of decrypted bytes, or -1 at the end of the stream.
+		 */
+		private int unwrap() throws IOException
+		{
+			while(true){
+				appIn.compact();
+				SSLEngineResult result;
+				try{
+					result = engine.unwrap(netIn, appIn);
+				}
+				finally{
+					appIn.flip();
+				}
+				switch(result.getStatus()){
+					case OK:
+						if(result.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_TASK)
+							runDelegatedTasks();
+						if(result.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_WRAP)
+							wrap(ByteBuffer.allocate(0));
+						return result.bytesProduced();
+					case CLOSED:
+						return -1;
+					case BUFFER_OVERFLOW:
+						ByteBuffer largerApp = ByteBuffer.allocate(appIn.capacity()*2);
+						largerApp.put(appIn).flip();
+						appIn = largerApp;
+						break;
+					case BUFFER_UNDERFLOW:
+						netIn.compact();
+						if(!netIn.hasRemaining()){
+							netIn.flip();
+							ByteBuffer largerNet = ByteBuffer.allocate(netIn.capacity()*2);
+							largerNet.put(netIn);
+							netIn = largerNet;
+						}
+						int n = channel.read(netIn);
+						netIn.flip();
+						if(n<0)
+							return -1;
+						break;
+				}
+			}
+		}
+		public int read(ByteBuffer dst) throws IOException
+		{
+			while(!appIn.hasRemaining())
+				if(unwrap()<0)
+					return -1;
+			int n = Math.min(appIn.remaining(), dst.remaining());
+			ByteBuffer slice = appIn.duplicate();
+			slice.limit(slice.position()+n);
+			dst.put(slice);
+			appIn.position(appIn.position()+n);
+			return n;
+		}
+		public void write(ByteBuffer src) throws IOException
+		{
+			wrap(src);
+		}
+		public void close() throws IOException
+		{
+			try{
+				engine.closeOutbound();
+				wrap(ByteBuffer.allocate(0));
+			}
+			catch(IOException e){
+				//The peer may already be gone
+			}
+			finally{
+				channel.close();
+			}
+		}
 	}
 }
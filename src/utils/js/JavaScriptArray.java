@@ -1,24 +1,30 @@
 package utils.js;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
+import java.util.HashMap;
+import java.util.Map;
 import javax.script.ScriptException;
 
 public final class JavaScriptArray
 {
+	/**
+	 * Converts the array. The script is the same every time, so every engine
+	 * compiles it only once; the array's own source still is parsed by
+	 * <code>eval</code> on every call.
+	 */
+	private static final String conversion = "Java.to(eval(__content), __type)";
 	private final String content;
 
 	public JavaScriptArray(String content){
 		this.content=content;
 	}
-	
-	
-	private static final ScriptEngine jsengine = new ScriptEngineManager().getEngineByName("js");
-	
+
 	public <T> T to(Class<T> type) throws ScriptException{
 		//if(!type.isArray())
 		//	throw new IllegalArgumentException("Type "+type+" is not an array.");
-		return type.cast(jsengine.eval("Java.to("+this.content+",'"+type.getCanonicalName()+"')"));
+		Map<String, Object> variables = new HashMap<>();
+		variables.put("__content", this.content);
+		variables.put("__type", type.getCanonicalName());
+		return type.cast(ScriptEnginePool.getShared().eval(conversion, variables, ScriptSandbox.Limits.DEFAULT));
 	}
 /*
 	public Stream<T> filter(Predicate<? super T> predicate){
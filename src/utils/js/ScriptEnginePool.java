@@ -0,0 +1,156 @@
+package utils.js;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+/**
+ * A pool of script engines, so scripts can run on several threads at once
+ * without sharing an engine.<br>
+ * A thread borrows an engine for one evaluation. Each engine keeps the
+ * scripts it compiled, by source, so a script that is run again is not
+ * compiled again. Every evaluation gets fresh bindings, so scripts do not
+ * see each other's variables, and runs in a {@link ScriptSandbox}. An
+ * engine whose script was stopped may still be in use by the abandoned
+ * worker, so it is dropped and replaced.
+ */
+public final class ScriptEnginePool
+{
+	private static final ScriptEnginePool shared = new ScriptEnginePool("js", ScriptSandbox.maxRunning);
+	private static final int maxScriptsPerEngine = 64;
+
+	/**An engine and the scripts compiled with it; only used by the thread that borrowed it.*/
+	private static final class PooledEngine
+	{
+		final ScriptEngine engine;
+		final Map<String, CompiledScript> scripts = new LinkedHashMap<String, CompiledScript>(16, .75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest){
+				return size()>maxScriptsPerEngine;
+			}
+		};
+		PooledEngine(ScriptEngine engine)
+		{
+			this.engine=engine;
+		}
+		Object eval(String source, Map<String, Object> variables) throws ScriptException
+		{
+			Bindings bindings = engine.createBindings();
+			if(variables!=null)
+				bindings.putAll(variables);
+			if(!(engine instanceof Compilable))
+				return engine.eval(source, bindings);
+			CompiledScript script = scripts.get(source);
+			if(script==null){
+				script = ((Compilable)engine).compile(source);
+				scripts.put(source, script);
+			}
+			return script.eval(bindings);
+		}
+	}
+	private final String engineName;
+	private final int size;
+	private final BlockingQueue<PooledEngine> idle = new LinkedBlockingQueue<>();
+	/**The number of engines that are idle or borrowed.*/
+	private final AtomicInteger engines = new AtomicInteger();
+	private ScriptEngineManager manager;
+
+	/**
+	 * @param engineName The name of the engines, such as <code>"js"</code>
+	 * @param size The most engines that are used at once
+	 */
+	public ScriptEnginePool(String engineName, int size)
+	{
+		if(size<1)
+			throw new IllegalArgumentException("Invalid pool size "+size);
+		this.engineName=engineName;
+		this.size=size;
+	}
+	/**
+	 * The pool of JavaScript engines shared by the whole bot, with an engine
+	 * per processor, as many as {@link ScriptSandbox} runs scripts at once.
+	 */
+	public static ScriptEnginePool getShared()
+	{
+		return shared;
+	}
+	/**
+	 * Evaluates a script on a borrowed engine.
+	 * @param source The script
+	 * @param variables Variables for the script, or null
+	 * @return The value of the script.
+	 * @throws ScriptException if the script failed or exceeded the limits,
+	 * there is no engine, or none became free in time.
+	 */
+	public Object eval(String source, Map<String, Object> variables, ScriptSandbox.Limits limits) throws ScriptException
+	{
+		PooledEngine engine = borrow(limits.getWallMillis());
+		boolean reusable = false;
+		try{
+			Object result = ScriptSandbox.run(()->engine.eval(source, variables), limits);
+			reusable = true;
+			return result;
+		}
+		catch(ScriptSandbox.LimitExceededException e){
+			throw e;
+		}
+		catch(ScriptException e){
+			//The script failed by itself and the engine is not used any more
+			reusable = true;
+			throw e;
+		}
+		finally{
+			if(reusable)
+				idle.add(engine);
+			else
+				engines.decrementAndGet();
+		}
+	}
+	private PooledEngine borrow(long timeoutMillis) throws ScriptException
+	{
+		PooledEngine engine = idle.poll();
+		if(engine!=null)
+			return engine;
+		if(engines.incrementAndGet()<=size){
+			ScriptEngine created;
+			synchronized(this){
+				if(manager==null)
+					manager = new ScriptEngineManager();
+				created = manager.getEngineByName(engineName);
+			}
+			if(created==null){
+				engines.decrementAndGet();
+				throw new ScriptException("No \""+engineName+"\" script engine is available");
+			}
+			return new PooledEngine(created);
+		}
+		engines.decrementAndGet();
+		try{
+			engine = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new ScriptException("Interrupted while waiting for a script engine");
+		}
+		if(engine==null)
+			throw new ScriptException("All "+size+" script engines are busy");
+		return engine;
+	}
+	/**
+	 * The number of engines that are idle or borrowed.
+	 */
+	public int getEngineCount()
+	{
+		return engines.get();
+	}
+}
@@ -0,0 +1,255 @@
+package utils.js;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.script.ScriptException;
+
+/**
+ * Runs untrusted code, such as scripts from chat, on a bounded pool of worker
+ * threads with limits on the CPU time it uses, the memory it allocates and the
+ * time it takes.<br>
+ * At most {@link #maxRunning} tasks run at once, as many as the shared
+ * {@link ScriptEnginePool} has engines; further callers wait for a worker. The
+ * caller checks its worker while it waits. A task over its limits is
+ * interrupted and the caller gets a {@link LimitExceededException} at once.
+ * Nothing is stopped forcibly: a task that ignores the interrupt keeps its
+ * worker until it ends by itself, and while {@link #maxRunaway} such tasks are
+ * alive new tasks are refused.
+ */
+public final class ScriptSandbox
+{
+	private ScriptSandbox(){}
+
+	/**What a task may use.*/
+	public static final class Limits
+	{
+		/**The limits of evaluations from chat.*/
+		public static final Limits DEFAULT = new Limits(2000, 256L<<20, 10000);
+		private final long cpuMillis;
+		private final long maxAllocatedBytes;
+		private final long wallMillis;
+
+		/**
+		 * @param cpuMillis The CPU time the task may use, in milliseconds
+		 * @param maxAllocatedBytes The memory the task may allocate, in bytes
+		 * @param wallMillis The time the task may take, in milliseconds
+		 */
+		public Limits(long cpuMillis, long maxAllocatedBytes, long wallMillis)
+		{
+			this.cpuMillis=cpuMillis;
+			this.maxAllocatedBytes=maxAllocatedBytes;
+			this.wallMillis=wallMillis;
+		}
+		public long getCpuMillis(){return cpuMillis;}
+		public long getMaxAllocatedBytes(){return maxAllocatedBytes;}
+		public long getWallMillis(){return wallMillis;}
+	}
+	/**Thrown when a task was stopped for exceeding its limits.*/
+	public static final class LimitExceededException extends ScriptException
+	{
+		private static final long serialVersionUID = 1L;
+		LimitExceededException(String message)
+		{
+			super(message);
+		}
+	}
+	/**What a running task used so far; written by the worker, read by the caller.*/
+	private static final class Usage
+	{
+		volatile long threadid = -1;
+		volatile long cpuStart;
+		volatile long allocatedStart;
+		private boolean started = false;
+		private boolean ended = false;
+		private boolean abandoned = false;
+		private boolean runaway = false;
+
+		/**Called by the worker before the task; returns false if the caller already gave up on it.*/
+		synchronized boolean start()
+		{
+			long threadid = Thread.currentThread().getId();
+			cpuStart = cpuTime(threadid);
+			allocatedStart = allocatedBytes(threadid);
+			this.threadid = threadid;
+			started = true;
+			return !abandoned;
+		}
+		/**Called by the worker once the task is done.*/
+		synchronized void end()
+		{
+			ended = true;
+			if(runaway)
+				ScriptSandbox.runaway.decrementAndGet();
+			notifyAll();
+		}
+		/**
+		 * Called by the caller once it interrupted the task and stopped waiting
+		 * for it; gives the task a moment to end before counting it as runaway.
+		 */
+		synchronized void abandon()
+		{
+			if(abandoned)
+				return;
+			abandoned = true;
+			if(started && !ended){
+				try{
+					wait(checkIntervalMillis);
+				}
+				catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+			if(started && !ended){
+				runaway = true;
+				ScriptSandbox.runaway.incrementAndGet();
+			}
+		}
+	}
+	private static final long checkIntervalMillis = 10;
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final com.sun.management.ThreadMXBean allocations =
+			threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)threads : null;
+	/**The most tasks running at once, not counting stopped tasks that did not end yet.*/
+	static final int maxRunning = Runtime.getRuntime().availableProcessors();
+	/**The most stopped tasks that did not end yet before new tasks are refused.*/
+	private static final int maxRunaway = maxRunning;
+	private static final long keepAliveSeconds = 60;
+	private static final AtomicInteger workerNumber = new AtomicInteger();
+	/**The workers; idle ones end after a while, and there are only more than {@link #maxRunning} while stopped tasks hold some.*/
+	private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(maxRunning+maxRunaway, maxRunning+maxRunaway,
+			keepAliveSeconds, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), (runnable)->{
+		Thread thread = new Thread(runnable, "Script-"+workerNumber.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+	static{
+		workers.allowCoreThreadTimeOut(true);
+	}
+	/**Permits for the tasks that are running and not stopped.*/
+	private static final Semaphore running = new Semaphore(maxRunning, true);
+	private static final AtomicInteger runaway = new AtomicInteger();
+	private static final AtomicLong stopped = new AtomicLong();
+
+	/**
+	 * Runs a task within limits. Waiting for a free worker counts towards the
+	 * task's time limit.
+	 * @return What the task returned.
+	 * @throws LimitExceededException if the task exceeded a limit, or the
+	 * calling thread was interrupted while waiting for it.
+	 * @throws ScriptException if the task threw an exception, in which case
+	 * other exceptions are its cause, or no worker became free in time, or too
+	 * many stopped tasks are still running.
+	 */
+	public static <T> T run(Callable<T> task, Limits limits) throws ScriptException
+	{
+		if(runaway.get()>=maxRunaway)
+			throw new ScriptException("Too many stopped scripts are still running");
+		long start = System.nanoTime();
+		try{
+			if(!running.tryAcquire(limits.wallMillis, TimeUnit.MILLISECONDS))
+				throw new ScriptException("All "+maxRunning+" script workers are busy");
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new LimitExceededException("Interrupted");
+		}
+		try{
+			Usage usage = new Usage();
+			FutureTask<T> future = new FutureTask<>(()->{
+				if(!usage.start())
+					return null;
+				try{
+					return task.call();
+				}
+				finally{
+					usage.end();
+				}
+			});
+			//Waits in the queue if stopped tasks hold the other workers
+			workers.execute(future);
+			while(true){
+				try{
+					return future.get(checkIntervalMillis, TimeUnit.MILLISECONDS);
+				}
+				catch(TimeoutException e){
+					String exceeded = exceeded(usage, limits, start);
+					if(exceeded!=null)
+						throw stop(future, usage, exceeded);
+				}
+				catch(ExecutionException e){
+					Throwable cause = e.getCause();
+					if(cause instanceof ScriptException)
+						throw (ScriptException)cause;
+					ScriptException se = new ScriptException(String.valueOf(cause));
+					se.initCause(cause);
+					throw se;
+				}
+				catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw stop(future, usage, "Interrupted");
+				}
+			}
+		}
+		finally{
+			running.release();
+		}
+	}
+	/**Returns which limit the task exceeded, or null.*/
+	private static String exceeded(Usage usage, Limits limits, long start)
+	{
+		if((System.nanoTime()-start)/1000000>limits.wallMillis)
+			return "Time limit of "+limits.wallMillis+" ms exceeded";
+		long threadid = usage.threadid;
+		if(threadid<0)
+			return null;
+		long cpu = cpuTime(threadid);
+		if(cpu>=0 && (cpu-usage.cpuStart)/1000000>limits.cpuMillis)
+			return "CPU time limit of "+limits.cpuMillis+" ms exceeded";
+		long allocated = allocatedBytes(threadid);
+		if(allocated>=0 && allocated-usage.allocatedStart>limits.maxAllocatedBytes)
+			return "Memory limit of "+(limits.maxAllocatedBytes>>20)+" MiB exceeded";
+		return null;
+	}
+	private static LimitExceededException stop(FutureTask<?> future, Usage usage, String reason)
+	{
+		future.cancel(true);
+		usage.abandon();
+		stopped.incrementAndGet();
+		return new LimitExceededException(reason);
+	}
+	/**The CPU time of a thread in nanoseconds, or -1 if it is not measured.*/
+	private static long cpuTime(long threadid)
+	{
+		return threads.isThreadCpuTimeSupported() ? threads.getThreadCpuTime(threadid) : -1;
+	}
+	/**The bytes a thread allocated so far, or -1 if they are not measured.*/
+	private static long allocatedBytes(long threadid)
+	{
+		return allocations!=null && allocations.isThreadAllocatedMemorySupported()
+				? allocations.getThreadAllocatedBytes(threadid) : -1;
+	}
+	/**
+	 * The number of stopped tasks that ignored their interrupt and still run.
+	 */
+	public static int getRunawayCount()
+	{
+		return runaway.get();
+	}
+	/**
+	 * The number of tasks stopped for exceeding their limits.
+	 */
+	public static long getStoppedCount()
+	{
+		return stopped.get();
+	}
+}
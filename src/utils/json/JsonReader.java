@@ -0,0 +1,323 @@
+package utils.json;
+
+/**
+ * A minimal pull tokenizer for JSON text.<br>
+ * The input is read exactly once, front to back, without building a tree.
+ * Commas and colons are treated as separators, so the reader is lenient
+ * about their placement; it is meant for trusted server responses, not
+ * for validating arbitrary input.
+ */
+public final class JsonReader
+{
+	public static enum Token{
+		BEGIN_OBJECT,
+		END_OBJECT,
+		BEGIN_ARRAY,
+		END_ARRAY,
+		STRING,
+		NUMBER,
+		BOOLEAN,
+		NULL,
+		END_DOCUMENT,
+	}
+
+	/**The text being read.*/
+	private final CharSequence in;
+	/**The length of {@link #in}.*/
+	private final int length;
+	/**The index of the next character to be read.*/
+	private int pos;
+	/**Scratch buffer for strings that contain escapes.*/
+	private final StringBuilder buf = new StringBuilder();
+
+	public JsonReader(CharSequence in)
+	{
+		this.in=in;
+		this.length=in.length();
+	}
+
+	/**
+	 * Skips whitespace, commas and colons.
+	 * @return the next significant character, or -1 at the end of input.
+	 */
+	private int skipSeparators()
+	{
+		while(pos<length){
+			char ch = in.charAt(pos);
+			switch(ch){
+				case ' ':
+				case '\t':
+				case '\r':
+				case '\n':
+				case ',':
+				case ':':
+					++pos;
+					break;
+				default:
+					return ch;
+			}
+		}
+		return -1;
+	}
+	/**
+	 * Returns the type of the next token without consuming it.
+	 */
+	public Token peek()
+	{
+		int ch = skipSeparators();
+		switch(ch){
+			case -1:
+				return Token.END_DOCUMENT;
+			case '{':
+				return Token.BEGIN_OBJECT;
+			case '}':
+				return Token.END_OBJECT;
+			case '[':
+				return Token.BEGIN_ARRAY;
+			case ']':
+				return Token.END_ARRAY;
+			case '"':
+				return Token.STRING;
+			case 't':
+			case 'f':
+				return Token.BOOLEAN;
+			case 'n':
+				return Token.NULL;
+			default:
+				if(ch=='-' || ('0'<=ch && ch<='9'))
+					return Token.NUMBER;
+				throw syntaxError("Unexpected character '"+(char)ch+"'");
+		}
+	}
+	/**
+	 * @return {@code true} iff the current object or array has another element.
+	 */
+	public boolean hasNext()
+	{
+		int ch = skipSeparators();
+		return ch!=-1 && ch!='}' && ch!=']';
+	}
+	/**
+	 * The index of the next character to be read.<br>
+	 * Call {@link #peek()} first to skip any leading separators.
+	 */
+	public int position()
+	{
+		return pos;
+	}
+	/**
+	 * Returns a copy of the input between the given indices.
+	 * @see #position()
+	 */
+	public String slice(int start, int end)
+	{
+		return in.subSequence(start, end).toString();
+	}
+	private void expect(char ch)
+	{
+		if(skipSeparators()!=ch)
+			throw syntaxError("Expected '"+ch+"'");
+		++pos;
+	}
+	public void beginObject()
+	{
+		expect('{');
+	}
+	public void endObject()
+	{
+		expect('}');
+	}
+	public void beginArray()
+	{
+		expect('[');
+	}
+	public void endArray()
+	{
+		expect(']');
+	}
+	/**
+	 * Reads the name of the next member of the current object.
+	 */
+	public String nextName()
+	{
+		return nextString();
+	}
+	public String nextString()
+	{
+		expect('"');
+		int start = pos;
+		while(pos<length){
+			char ch = in.charAt(pos);
+			if(ch=='"'){
+				String s = in.subSequence(start, pos).toString();
+				++pos;
+				return s;
+			}
+			if(ch=='\\'){
+				buf.setLength(0);
+				buf.append(in, start, pos);
+				return nextEscapedString();
+			}
+			++pos;
+		}
+		throw syntaxError("Unterminated string");
+	}
+	/**Continues reading a string from its first escape sequence onwards.*/
+	private String nextEscapedString()
+	{
+		while(pos<length){
+			char ch = in.charAt(pos++);
+			if(ch=='"')
+				return buf.toString();
+			if(ch!='\\'){
+				buf.append(ch);
+				continue;
+			}
+			if(pos>=length)
+				break;
+			ch = in.charAt(pos++);
+			switch(ch){
+				case 'b':
+					buf.append('\b');
+					break;
+				case 'f':
+					buf.append('\f');
+					break;
+				case 'n':
+					buf.append('\n');
+					break;
+				case 'r':
+					buf.append('\r');
+					break;
+				case 't':
+					buf.append('\t');
+					break;
+				case 'u':
+					if(pos+4>length)
+						throw syntaxError("Truncated unicode escape");
+					int code = 0;
+					for(int i=0;i<4;++i){
+						int digit = Character.digit(in.charAt(pos++), 16);
+						if(digit<0)
+							throw syntaxError("Invalid unicode escape");
+						code = (code<<4)|digit;
+					}
+					buf.append((char)code);
+					break;
+				default:
+					buf.append(ch);
+					break;
+			}
+		}
+		throw syntaxError("Unterminated string");
+	}
+	/**
+	 * Reads a number as a {@code long}. Fractions and exponents are
+	 * truncated towards zero.
+	 */
+	public long nextLong()
+	{
+		if(peek()!=Token.NUMBER)
+			throw syntaxError("Expected a number");
+		int start = pos;
+		boolean negative = in.charAt(pos)=='-';
+		if(negative)
+			++pos;
+		long value = 0;
+		while(pos<length){
+			char ch = in.charAt(pos);
+			if(ch<'0' || ch>'9')
+				break;
+			value = value*10 + (ch-'0');
+			++pos;
+		}
+		if(pos<length){
+			char ch = in.charAt(pos);
+			if(ch=='.' || ch=='e' || ch=='E'){
+				while(pos<length && "+-.eE0123456789".indexOf(in.charAt(pos))>=0)
+					++pos;
+				return (long)Double.parseDouble(slice(start, pos));
+			}
+		}
+		return negative ? -value : value;
+	}
+	public boolean nextBoolean()
+	{
+		if(matchLiteral("true"))
+			return true;
+		if(matchLiteral("false"))
+			return false;
+		throw syntaxError("Expected a boolean");
+	}
+	public void nextNull()
+	{
+		if(!matchLiteral("null"))
+			throw syntaxError("Expected null");
+	}
+	private boolean matchLiteral(String literal)
+	{
+		skipSeparators();
+		int n = literal.length();
+		if(pos+n>length)
+			return false;
+		for(int i=0;i<n;++i)
+			if(in.charAt(pos+i)!=literal.charAt(i))
+				return false;
+		pos+=n;
+		return true;
+	}
+	/**
+	 * Skips the next value, including all of its nested values.
+	 */
+	public void skipValue()
+	{
+		int depth = 0;
+		do{
+			switch(peek()){
+				case BEGIN_OBJECT:
+				case BEGIN_ARRAY:
+					++depth;
+					++pos;
+					break;
+				case END_OBJECT:
+				case END_ARRAY:
+					if(depth==0)
+						throw syntaxError("Nothing to skip");
+					--depth;
+					++pos;
+					break;
+				case STRING:
+					skipString();
+					break;
+				case NUMBER:
+					while(pos<length && "+-.eE0123456789".indexOf(in.charAt(pos))>=0)
+						++pos;
+					break;
+				case BOOLEAN:
+					nextBoolean();
+					break;
+				case NULL:
+					nextNull();
+					break;
+				case END_DOCUMENT:
+					throw syntaxError("Unexpected end of input");
+			}
+		}while(depth>0);
+	}
+	private void skipString()
+	{
+		++pos;
+		while(pos<length){
+			char ch = in.charAt(pos++);
+			if(ch=='"')
+				return;
+			if(ch=='\\')
+				++pos;
+		}
+		throw syntaxError("Unterminated string");
+	}
+	private IllegalArgumentException syntaxError(String message)
+	{
+		return new IllegalArgumentException(message+" at index "+pos+" of JSON input.");
+	}
+}